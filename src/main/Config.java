@@ -0,0 +1,73 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Read-only access to the settings in config.txt for code that has no SongDownloader to ask.
+ * Each line of the file is "key::value".
+ */
+public class Config {
+
+	public static final String CONFIG_FILE = "config.txt";
+	private static HashMap<String, String> configs;
+	
+	/**
+	 * Reads the config file into a new map
+	 * @return
+	 * @throws IOException If there is no config file or it can't be read
+	 */
+	public static HashMap<String, String> read() throws IOException{
+		HashMap<String, String> map = new HashMap<String,String>();
+		BufferedReader reader = new BufferedReader(new FileReader(new File(CONFIG_FILE)));
+		try{
+			String line = "";
+			while ((line=reader.readLine())!=null){
+				String []split = line.split("::");
+				if (split.length>1){
+					map.put(split[0], split[1]);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		return map;
+	}
+	
+	private static synchronized HashMap<String, String> getConfigs(){
+		if (configs==null){
+			try {
+				configs = read();
+			} catch (IOException e) {
+				configs = new HashMap<String,String>();
+			}
+		}
+		return configs;
+	}
+	
+	public static String get(String key, String defaultValue){
+		String value = getConfigs().get(key);
+		if (value==null)
+			return defaultValue;
+		return value.trim();
+	}
+	
+	public static int getInt(String key, int defaultValue){
+		try{
+			return Integer.parseInt(get(key, ""+defaultValue));
+		}catch(NumberFormatException e){
+			return defaultValue;
+		}
+	}
+	
+	public static long getLong(String key, long defaultValue){
+		try{
+			return Long.parseLong(get(key, ""+defaultValue));
+		}catch(NumberFormatException e){
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package main;
+
+import javax.swing.JTextArea;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+
+/**
+ * A read-only text area that keeps only the newest lines. Lines are added to the end of its
+ * Document instead of setting all of the text again, so adding a line costs the same however
+ * long the log is. Old lines are dropped a chunk at a time, once there are a tenth too many.
+ */
+public class LogArea extends JTextArea {
+
+	private static final long serialVersionUID = 1L;
+
+	private int maxLines;
+
+	/**
+	 * @param maxLines How many lines to keep
+	 */
+	public LogArea(int maxLines){
+		this.maxLines = Math.max(1, maxLines);
+		setEditable(false);
+	}
+
+	/**
+	 * Adds a line to the end. Only call on the event thread.
+	 * @param line
+	 */
+	public void addLine(String line){
+		Document doc = getDocument();
+		try {
+			doc.insertString(doc.getLength(), line+"\n", null);
+			Element root = doc.getDefaultRootElement();
+			//The text ends with a newline, so the last element is always empty
+			int lines = root.getElementCount()-1;
+			if (lines>maxLines+maxLines/10){
+				int drop = lines-maxLines;
+				doc.remove(0, root.getElement(drop-1).getEndOffset());
+			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Drops every line
+	 */
+	public void clear(){
+		setText("");
+	}
+}
@@ -7,14 +7,14 @@ import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.HashMap;
+import java.util.List;
 
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
@@ -26,17 +26,25 @@ import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.Timer;
 import javax.swing.UIManager;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
+import main.pipeline.IBatchListener;
+import main.pipeline.JobJournal;
+import main.pipeline.JobScheduler;
+import main.pipeline.JobState;
+import main.pipeline.PipelineSettings;
+import main.pipeline.SongListReader;
 import main.song.AllSongsPanel;
-import main.song.ISongDownloadedListener;
 import main.song.SongController;
+import main.web.PageCache;
 
 import common.GosuFrame;
 import common.StringOps;
 import common.SwingOps;
 
-public class SongDownloader implements ISongDownloadedListener{
+public class SongDownloader implements IBatchListener{
 
 	//VAR START
 	static GosuFrame frame;
@@ -47,18 +55,15 @@ public class SongDownloader implements ISongDownloadedListener{
 	JTextArea songArea;
 	public static String downloadDir="";
 	private JTextField fileField;
-	private JTextArea logArea;
-	String []songLines = null;
+	private LogArea logArea;
 	private AllSongsPanel allSongsPanel;
 	private JFileChooser fileChooser;
+	private JFileChooser importChooser;
+	private JButton importButton;
 	private JPanel mainPanel;
 	private JScrollPane logAreaScroll;
-	int numSongs=-1;
-	int numSongsDone=-1;
-	int numSongsThreshold=5;
-	int numSongsDownloading=-1;
-	int curSong=-1;
-	Thread goThread;
+	JobScheduler scheduler;
+	private Timer progressTimer;
 	boolean going=false;
 	public static SongDownloader thiz = null;
 	//VAR END
@@ -84,11 +89,17 @@ public class SongDownloader implements ISongDownloadedListener{
 		
 		//Log Panel
 		JPanel logPanel = new JPanel(new BorderLayout());
-		logArea = new JTextArea("");
-		logArea.setEditable(false);
+		logArea = new LogArea(Config.getInt("log_max_lines", 2000));
 		logAreaScroll = new JScrollPane(logArea);
 		logAreaScroll.setPreferredSize(new Dimension(logArea.getWidth(),200));
 		logPanel.add(logAreaScroll,BorderLayout.CENTER);
+		progressTimer = new Timer(1000, new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (scheduler!=null)
+					allSongsPanel.showProgress(scheduler.getProgress());
+			}
+		});
 		
 		// FRAME STUFF
 		frame = new GosuFrame("Song Downloader",1100,800);
@@ -131,9 +142,19 @@ public class SongDownloader implements ISongDownloadedListener{
 		JPanel songPanel = new JPanel(new BorderLayout());
 		JPanel songAreaPanel = new JPanel(new GridLayout(1,2));
 		songArea = new JTextArea("http://www.youtube.com/watch?v=boanuwUMNNQ\nMetallica - Bleeding Me\nwill sasso bathtub");
+		songArea.setToolTipText("Paste a few songs here. Use Import for long lists.");
 		JScrollPane songAreaScroll = new JScrollPane(songArea);
 		allSongsPanel = new AllSongsPanel();
-		JPanel songOpPanel = new JPanel(new GridLayout(1,2));
+		JPanel songOpPanel = new JPanel(new GridLayout(1,3));
+		importChooser = new JFileChooser(".");
+		importChooser.setFileFilter(new FileNameExtensionFilter("Song lists (txt, csv, m3u)", "txt", "csv", "m3u", "m3u8"));
+		importButton = new JButton("Import (Ctrl+I)");
+		importButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				importFile();
+			}
+		});
 		goButton = new JButton("Go (Ctrl+Enter)");
 		goButton.addActionListener(new ActionListener(){
 			@Override
@@ -153,6 +174,7 @@ public class SongDownloader implements ISongDownloadedListener{
 		songAreaPanel.add(allSongsPanel);
 		songPanel.add(songOpPanel,BorderLayout.SOUTH);
 		songOpPanel.add(goButton);
+		songOpPanel.add(importButton);
 		songOpPanel.add(cancelButton);
 		
 		//Main Panel
@@ -168,6 +190,31 @@ public class SongDownloader implements ISongDownloadedListener{
 		
 		//Show frame
 		frame.vis();
+		
+		askToResume();
+	}
+	
+	/**
+	 * Offers to finish the songs the last run never got to, e.g. because it crashed
+	 */
+	public void askToResume(){
+		List<JobJournal.Entry> unfinished = JobJournal.get().getUnfinished();
+		if (unfinished.isEmpty())
+			return;
+		int answer = JOptionPane.showConfirmDialog(frame,
+				unfinished.size()+" songs from last time weren't finished. Resume them?",
+				"Resume", JOptionPane.YES_NO_OPTION);
+		if (answer!=JOptionPane.YES_OPTION){
+			JobJournal.get().cancelAll();
+			return;
+		}
+		log("Resuming "+unfinished.size()+" songs");
+		setGoEnabled(false);
+		allSongsPanel.clear();
+		going = true;
+		scheduler = new JobScheduler(this, allSongsPanel.getSettings());
+		scheduler.resume(unfinished);
+		progressTimer.start();
 	}
 	
 	/**
@@ -179,6 +226,7 @@ public class SongDownloader implements ISongDownloadedListener{
 		SwingOps.addHotkey(mainPanel, "shift ENTER", this,"skip");
 		SwingOps.addHotkey(mainPanel, "control F", this,"file");
 		SwingOps.addHotkey(mainPanel, "control D", this,"open");
+		SwingOps.addHotkey(mainPanel, "control I", this,"importFile");
 	}
 	
 	/**
@@ -215,15 +263,7 @@ public class SongDownloader implements ISongDownloadedListener{
 	public void readConfigFile(){
 		configs = new HashMap<String,String>();
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(new File("config.txt")));
-			String line = "";
-			while ((line=reader.readLine())!=null){
-				String []split = line.split("::");
-				if (split.length>1){
-					configs.put(split[0], split[1]);
-				}
-			}
-			reader.close();
+			configs = Config.read();
 		} catch (FileNotFoundException e) {
 			log("No config file. Will create one.");
 		} catch (IOException e) {
@@ -236,8 +276,38 @@ public class SongDownloader implements ISongDownloadedListener{
 	 * Start processing all the songs in the song text area.
 	 */
 	public void go(){
-		if (!goButton.isEnabled())
+		if ((!goButton.isEnabled())||(!checkDownloadDir()))
 			return;
+		start(new SongListReader(new StringReader(songArea.getText()), SongListReader.Format.TEXT));
+	}
+	
+	/**
+	 * Picks a text, CSV or M3U file and processes its songs straight from the file, without
+	 * putting them in the song text area.
+	 */
+	public void importFile(){
+		if ((!goButton.isEnabled())||(!checkDownloadDir()))
+			return;
+		if (importChooser.showOpenDialog(frame)!=JFileChooser.APPROVE_OPTION)
+			return;
+		File file = importChooser.getSelectedFile();
+		SongListReader songs;
+		try {
+			songs = SongListReader.open(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			messageBox("Couldn't open \""+file.getAbsolutePath()+"\".");
+			return;
+		}
+		log("Importing songs from "+file.getAbsolutePath());
+		start(songs);
+	}
+	
+	/**
+	 * Checks the "Download Folder" is there, using the current folder if it's blank
+	 * @return false if the batch can't start
+	 */
+	private boolean checkDownloadDir(){
 		downloadDir = fileField.getText();
 		if (StringOps.isEmpty(downloadDir)){
 			downloadDir = ".";
@@ -246,67 +316,50 @@ public class SongDownloader implements ISongDownloadedListener{
 		File dir = new File(downloadDir);
 		if (!dir.exists()){
 			messageBox("Directory \""+downloadDir+"\" does not exist.");
-			return;
+			return false;
 		}
 		if (!dir.isDirectory()){
 			messageBox("\""+downloadDir+"\" is not a directory.");
-			return;
-		}
-		
-		setGoEnabled(false);
-		allSongsPanel.clear();
-		songLines= songArea.getText().split("\n");
-		if (songLines!=null){
-			numSongs = 0;
-			numSongsDone = 0;
-			numSongsDownloading=0;
-			curSong = 0;
-			going = true;
-			continueGoing();
+			return false;
 		}
+		return true;
 	}
 	
-	public void continueGoing(){
-		if (!going)
-			return;
-		if (goThread!=null){
-			goThread.interrupt();
-		}
-		Runnable runnable = new Runnable() {
-			@Override
-			public void run() {
-				while(curSong<songLines.length){
-					if (!canContinue()){
-						break;
-					}
-					String songLine = songLines[curSong];
-					if (!StringOps.isEmpty(songLine)){
-						SongController cont = new SongController(songLine);
-						cont.setSongDownloadedListener(SongDownloader.this);
-						allSongsPanel.addSongController(cont);
-						numSongs++;
-						numSongsDownloading++;
-						curSong++;
-					}
-				}
-			}
-		};
-		goThread = new Thread(runnable);
-		goThread.start();
+	private void start(SongListReader songs){
+		setGoEnabled(false);
+		allSongsPanel.clear();
+		going = true;
+		PipelineSettings settings = allSongsPanel.getSettings();
+		settings.downloadDir = downloadDir;
+		scheduler = new JobScheduler(this, settings);
+		scheduler.feed(songs);
+		progressTimer.start();
 	}
 	
 	/**
 	 * Cancels all processing and re-enables buttons
 	 */
 	public void cancel(){
+		if (scheduler!=null)
+			scheduler.cancel();
 		allSongsPanel.cancelAll();
 		done();
 	}
 	
 	public void done(){
-		numSongs = -1;
-		numSongsDone = -1;
-		numSongsDownloading = -1;
+		if (scheduler!=null){
+			log("Batch: "+scheduler.getProgress());
+			if (scheduler.getDuplicates()>0)
+				log("Skipped "+scheduler.getDuplicates()+" songs that were already in the list");
+			log("Downloaded "+SongController.toMegabytes(scheduler.getBytesDownloaded())
+					+", songs made by: "+scheduler.getConversions());
+			log("Average time per song: "+scheduler.getStageStats());
+		}
+		log(PageCache.get().getStats());
+		progressTimer.stop();
+		if (scheduler!=null)
+			allSongsPanel.showProgress(scheduler.getProgress());
+		scheduler = null;
 		going=false;
 		setGoEnabled(true);
 	}
@@ -317,6 +370,7 @@ public class SongDownloader implements ISongDownloadedListener{
 	 */
 	public void setGoEnabled(boolean b){
 		songArea.setEditable(b);
+		importButton.setEnabled(b);
 		cancelButton.setEnabled(!b);
 		goButton.setEnabled(b);
 	}
@@ -326,7 +380,7 @@ public class SongDownloader implements ISongDownloadedListener{
 	 */
 	public void writeConfigs(){
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter("config.txt",true));
+			BufferedWriter writer = new BufferedWriter(new FileWriter(Config.CONFIG_FILE,true));
 			String line = "";
 			for(String key:configs.keySet()){
 				line = key+"::"+configs.get(key);
@@ -339,13 +393,23 @@ public class SongDownloader implements ISongDownloadedListener{
 	}
 	
 	/**
-	 * Add a string to the log area.
+	 * Add a string to the log area. Only the newest lines are kept (log_max_lines in config.txt).
+	 * Can be called from any thread.
 	 * @param text
 	 */
-	public void log(String text){
+	public void log(final String text){
+		if (!EventQueue.isDispatchThread()){
+			EventQueue.invokeLater(new Runnable(){
+				@Override
+				public void run() {
+					log(text);
+				}
+			});
+			return;
+		}
 		final JScrollBar vertBar = logAreaScroll.getVerticalScrollBar();
 		boolean shouldScroll = (vertBar.getMaximum() - vertBar.getVisibleAmount() == vertBar.getValue());
-		logArea.setText(logArea.getText()+text+"\n");
+		logArea.addLine(text);
 		if (shouldScroll){
 			EventQueue.invokeLater(new Runnable(){
 				@Override
@@ -365,36 +429,57 @@ public class SongDownloader implements ISongDownloadedListener{
 	}
 
 	@Override
-	public void songDownloaded() {
-		numSongsDone++;
-		numSongsDownloading--;
-		if (numSongsDone>=numSongs){
-			done();
-		}else if (canContinue()){
-			continueGoing();
-		}
+	public void songAdded(final SongController cont) {
+		EventQueue.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				allSongsPanel.addSongController(cont);
+			}
+		});
 	}
 
 	@Override
-	public void songCancelled() {
-		numSongsDone++;
-		numSongsDownloading--;
-		if (numSongsDone>=numSongs){
-			done();
-		}else if (canContinue()){
-			continueGoing();
-		}
+	public void songStateChanged(final SongController cont, JobState state) {
+		//The song table shows its own progress
+		if (state!=JobState.RESOLVED)
+			return;
+		EventQueue.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				allSongsPanel.songResolved(cont);
+			}
+		});
 	}
-	
-	public void updateNumThreads(int numThreads){
-		numSongsThreshold = numThreads;
-		if (canContinue()){
-			continueGoing();
-		}
+
+	@Override
+	public void stageLimitChanged(final String stage, final int limit) {
+		EventQueue.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				allSongsPanel.showStageLimit(stage, limit);
+			}
+		});
+	}
+
+	@Override
+	public void batchDone() {
+		EventQueue.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (going)
+					done();
+			}
+		});
 	}
 	
-	public boolean canContinue(){
-		return (((numSongsDownloading<numSongsThreshold)||(numSongsThreshold==0))&&(going));
+	/**
+	 * Changes how many songs a pipeline stage may work on at once
+	 * @param stage One of the JobScheduler stage names
+	 * @param numThreads 0=infinite
+	 */
+	public void updateStageLimit(String stage, int numThreads){
+		if (scheduler!=null)
+			scheduler.setLimit(stage, numThreads);
 	}
 	
 }
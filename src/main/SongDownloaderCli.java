@@ -0,0 +1,242 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import main.pipeline.BatchResult;
+import main.pipeline.IBatchListener;
+import main.pipeline.JobJournal;
+import main.pipeline.JobScheduler;
+import main.pipeline.JobState;
+import main.pipeline.PipelineSettings;
+import main.pipeline.SongListReader;
+import main.song.Song;
+import main.song.SongController;
+
+/**
+ * Runs a batch without a window, for servers and scripts.
+ * Song lines are read from a text, CSV or M3U file (see SongListReader) or from stdin, skipping
+ * songs already in the list, and every change of a song's state is printed to stdout as one
+ * line of JSON. With --resume, songs an earlier run
+ * never finished are downloaded first.
+ *
+ * Usage: SongDownloaderCli [-f songs.txt|songs.csv|playlist.m3u] [-d dir] [-r searchThreads] [-a searchAhead]
+ * [-t downloadThreads] [-c convertThreads] [-b songsPerYoutubeDl] [--stream] [--keep-video] [--video] [--keep-audio-format] [--fixed] [--resume]
+ *
+ * -t is the most downloads at once. Unless --fixed is given the number actually used is picked
+ * while running and printed as "limit" events. Every 10 seconds a "progress" event gives the
+ * counts so far and about how many seconds are left ("eta", -1 if not known yet).
+ */
+public class SongDownloaderCli implements IBatchListener{
+
+	private static final long PROGRESS_SECONDS = 10;
+
+	public static void main(String []args){
+		PipelineSettings settings = new PipelineSettings();
+		String songFile = null;
+		boolean resume = false;
+		try{
+			for(int i=0;i<args.length;i++){
+				String arg = args[i];
+				if ("-f".equals(arg))
+					songFile = args[++i];
+				else if ("-d".equals(arg))
+					settings.downloadDir = args[++i];
+				else if ("-r".equals(arg))
+					settings.resolveLimit = Integer.parseInt(args[++i]);
+				else if ("-a".equals(arg))
+					settings.resolveAhead = Integer.parseInt(args[++i]);
+				else if ("-t".equals(arg))
+					settings.downloadLimit = Integer.parseInt(args[++i]);
+				else if ("-c".equals(arg))
+					settings.transcodeLimit = Integer.parseInt(args[++i]);
+				else if ("-b".equals(arg))
+					settings.batchSize = Integer.parseInt(args[++i]);
+				else if ("--stream".equals(arg))
+					settings.streaming = true;
+				else if ("--keep-video".equals(arg))
+					settings.keepVideo = true;
+				else if ("--keep-audio-format".equals(arg))
+					settings.keepAudioFormat = true;
+				else if ("--fixed".equals(arg))
+					settings.autoDownloadLimit = false;
+				else if ("--video".equals(arg))
+					settings.audioOnly = false;
+				else if ("--resume".equals(arg))
+					resume = true;
+				else{
+					usage("Unknown option "+arg);
+					return;
+				}
+			}
+		}catch(ArrayIndexOutOfBoundsException e){
+			usage("Missing value for "+args[args.length-1]);
+			return;
+		}catch(NumberFormatException e){
+			usage("Not a number: "+e.getMessage());
+			return;
+		}
+
+		SongDownloaderCli cli = new SongDownloaderCli();
+		System.exit(cli.run(songFile, settings, resume));
+	}
+
+	private static void usage(String error){
+		System.err.println(error);
+		System.err.println("Usage: SongDownloaderCli [-f songs.txt|songs.csv|playlist.m3u] [-d dir] [-r searchThreads] [-a searchAhead]"
+				+" [-t downloadThreads] [-c convertThreads] [-b songsPerYoutubeDl] [--stream] [--keep-video] [--video] [--keep-audio-format] [--fixed] [--resume]");
+		System.exit(2);
+	}
+
+	/**
+	 * Downloads every song line in the file, blocking until they are all finished
+	 * @param songFile null to read from stdin
+	 * @param settings
+	 * @param resume Whether to first finish the songs an earlier run left
+	 * @return The exit code, 1 if any song failed
+	 */
+	public int run(String songFile, PipelineSettings settings, boolean resume){
+		JobScheduler scheduler = new JobScheduler(this, settings);
+		SongListReader songs = null;
+		try {
+			if (resume)
+				scheduler.resumeNow(JobJournal.get().getUnfinished());
+			if (songFile==null)
+				songs = new SongListReader(new InputStreamReader(System.in, "UTF-8"), SongListReader.Format.TEXT);
+			else
+				songs = SongListReader.open(new File(songFile));
+			String line;
+			while ((line=songs.readSong())!=null){
+				scheduler.submit(line);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			scheduler.cancel();
+			return 2;
+		} catch (InterruptedException e) {
+			scheduler.cancel();
+			return 2;
+		} finally {
+			try {
+				if (songs!=null)
+					songs.close();
+			} catch (IOException e) {
+			}
+		}
+		scheduler.finishedSubmitting();
+
+		BatchResult result = null;
+		try {
+			while (result==null){
+				try {
+					result = scheduler.getCompletion().get(PROGRESS_SECONDS, TimeUnit.SECONDS);
+				} catch (TimeoutException e) {
+					BatchResult now = scheduler.getProgress();
+					print("{\"event\":\"progress\",\"total\":"+now.total+",\"finished\":"+now.done
+							+",\"failed\":"+now.failed+",\"cancelled\":"+now.cancelled
+							+",\"eta\":"+now.etaSeconds+"}");
+				}
+			}
+		} catch (InterruptedException e) {
+			scheduler.cancel();
+			return 2;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return 2;
+		}
+		print("{\"event\":\"done\",\"total\":"+result.total+",\"finished\":"+result.done
+				+",\"failed\":"+result.failed+",\"cancelled\":"+result.cancelled
+				+",\"duplicates\":"+songs.getDuplicates()
+				+",\"bytes\":"+result.bytesDownloaded
+				+",\"seconds\":"+result.elapsedMillis/1000
+				+",\"conversions\":"+toJson(scheduler.getConversions())+"}");
+		return (result.failed+result.cancelled>0) ? 1 : 0;
+	}
+
+	@Override
+	public void songAdded(SongController cont) {
+	}
+
+	@Override
+	public void songStateChanged(SongController cont, JobState state) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"event\":\"state\",\"job\":").append(cont.getId());
+		json.append(",\"state\":\"").append(state.name()).append('"');
+		json.append(",\"input\":").append(quote(cont.getInput()));
+		Song song = cont.getSong();
+		if (song!=null){
+			json.append(",\"artist\":").append(quote(song.artist));
+			json.append(",\"title\":").append(quote(song.title));
+		}
+		if (state==JobState.RESOLVED)
+			json.append(",\"video\":").append(quote(cont.getVideoId()));
+		if (state.isFinal()){
+			json.append(",\"bytes\":").append(cont.getBytesDownloaded());
+			json.append(",\"conversion\":").append(quote(cont.getConversion()));
+		}
+		json.append('}');
+		print(json.toString());
+	}
+
+	@Override
+	public void stageLimitChanged(String stage, int limit) {
+		print("{\"event\":\"limit\",\"stage\":"+quote(stage)+",\"limit\":"+limit+"}");
+	}
+
+	@Override
+	public void batchDone() {
+		//run() waits on the scheduler's completion instead
+	}
+
+	/**
+	 * Prints one whole line so lines from different songs never mix
+	 */
+	private static synchronized void print(String line){
+		System.out.println(line);
+		System.out.flush();
+	}
+
+	private static String toJson(Map<String, Integer> counts){
+		StringBuilder json = new StringBuilder("{");
+		for(Map.Entry<String, Integer> entry:counts.entrySet()){
+			if (json.length()>1)
+				json.append(',');
+			json.append(quote(entry.getKey())).append(':').append(entry.getValue());
+		}
+		return json.append('}').toString();
+	}
+	
+	/**
+	 * Makes a JSON string, with quotes
+	 * @param s
+	 * @return "null" if s is null
+	 */
+	static String quote(String s){
+		if (s==null)
+			return "null";
+		StringBuilder b = new StringBuilder(s.length()+2);
+		b.append('"');
+		for(int i=0;i<s.length();i++){
+			char c = s.charAt(i);
+			switch(c){
+			case '"': b.append("\\\""); break;
+			case '\\': b.append("\\\\"); break;
+			case '\n': b.append("\\n"); break;
+			case '\r': b.append("\\r"); break;
+			case '\t': b.append("\\t"); break;
+			default:
+				if (c<0x20)
+					b.append(String.format("\\u%04x", (int)c));
+				else
+					b.append(c);
+			}
+		}
+		b.append('"');
+		return b.toString();
+	}
+}
@@ -1,33 +1,225 @@
 package main;
 
-import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import main.web.Backoff;
+import main.web.CircuitBreaker;
+import main.web.PageCache;
+import main.web.RateLimiter;
+
+import common.StringOps;
+
+/**
+ * Reads web pages over shared keep-alive connections, so parallel resolvers reuse the same warm
+ * connections. Requests ask for gzip/deflate and time out instead of hanging a resolve thread.
+ *
+ * Every request waits its turn with the shared RateLimiter and reports how it went to the
+ * RateLimiter and CircuitBreaker.
+ *
+ * Settings in config.txt: http_connections, http_connect_timeout_ms, http_read_timeout_ms, web_retries
+ */
 public class WebPageReader {
 
+	/** Longest text extractBetween will collect before giving up on the end marker */
+	private static final int MAX_EXTRACT_LENGTH = 64*1024;
+	private static final int CONNECT_TIMEOUT = Config.getInt("http_connect_timeout_ms", 10000);
+	private static final int READ_TIMEOUT = Config.getInt("http_read_timeout_ms", 20000);
+	private static final int RETRIES = Config.getInt("web_retries", 2);
+	private static final Backoff BACKOFF = new Backoff(500, 15000);
+	
+	static{
+		//Idle connections kept per host by HttpURLConnection. Must be set before the first request.
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", ""+Config.getInt("http_connections", 20));
+	}
 
-	public static String readWebPage(String urlString){
-		return readWebPageWithDelay(urlString, 0);
+	/**
+	 * Finds each marker in turn and returns the text between the last two, like the page
+	 * title between "<title>" and "</title>". The page is scanned as it arrives and
+	 * the connection is closed as soon as the last marker is found, so the rest of the page is
+	 * never kept. Only the extracted text is cached. Failed requests and pages without the
+	 * markers, which is what a throttled request gets, are retried with backoff.
+	 * @param urlString
+	 * @param markers At least two
+	 * @return The text, or null if the markers weren't all found
+	 */
+	public static String extractBetween(String urlString, String ...markers){
+		return extractBetween(urlString, null, markers);
 	}
 	
-	public static String readWebPageWithDelay(String urlString, int delayInMiliseconds){
-		String retVal="";
+	/**
+	 * extractBetween that also says how far the last try got, e.g. to tell a page that really
+	 * doesn't have what was looked for from a request that failed or was throttled
+	 * @param urlString
+	 * @param found If not null, found[0] is set to how many markers the last page that was
+	 * read had in a row, 0 if no page was read
+	 * @param markers At least two
+	 * @return The text, or null if the markers weren't all found
+	 */
+	public static String extractBetween(String urlString, int []found, String ...markers){
+		if (found!=null)
+			found[0] = 0;
+		String fullUrl = getUrl(urlString);
+		String key = fullUrl+"\n"+join(markers);
+		PageCache cache = PageCache.get();
+		PageCache.Entry cached = cache.lookup(key);
+		if ((cached!=null)&&(cache.isFresh(cached))){
+			return cached.body;
+		}
+		for(int attempt=0;;attempt++){
+			if (!RateLimiter.get().acquire())
+				return null;
+			int ticket = CircuitBreaker.get().begin();
+			String extracted = fetchBetween(fullUrl, key, cached, markers, found);
+			if (extracted!=null){
+				succeeded(ticket);
+				return extracted;
+			}
+			failed(ticket);
+			if ((attempt>=RETRIES)||(!BACKOFF.sleep(attempt)))
+				return null;
+		}
+	}
+	
+	/**
+	 * Sends one request and scans it for the markers
+	 * @return The text, or null if the request failed or the markers weren't all found
+	 */
+	private static String fetchBetween(String fullUrl, String key, PageCache.Entry cached, String []markers, int []found){
+		PageCache cache = PageCache.get();
+		Reader reader = null;
+		if (found!=null)
+			found[0] = 0;
 		try {
-			URL url = new URL(getUrl(urlString));
-			URLConnection con = url.openConnection();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
-			String line;
-			Thread.sleep(delayInMiliseconds);
-			while ((line=reader.readLine())!=null){
-				retVal+=line;
+			URLConnection con = open(fullUrl, cached);
+			if (isNotModified(con, cached)){
+				return cache.revalidated(cached).body;
 			}
-		} catch (Exception e) {
+			reader = new InputStreamReader(getInputStream(con), "UTF-8");
+			String extracted = scan(reader, markers, found);
+			if (extracted!=null)
+				cache.put(key, extracted, con.getHeaderField("ETag"), con.getHeaderField("Last-Modified"));
+			return extracted;
+		} catch (IOException e) {
 			e.printStackTrace();
+			if (found!=null)
+				found[0] = 0;
+			return null;
+		} finally {
+			//Closing early lets HttpURLConnection decide whether the rest is small enough to skip
+			//and keep the connection, or whether to drop it
+			if (reader!=null){
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	private static void succeeded(int ticket){
+		RateLimiter.get().success();
+		CircuitBreaker.get().success(ticket);
+	}
+	
+	private static void failed(int ticket){
+		RateLimiter.get().failure();
+		CircuitBreaker.get().failure(ticket);
+	}
+	
+	/**
+	 * Reads until the markers are found one after the other, keeping only enough text to
+	 * match the next marker.
+	 * @param reader
+	 * @param markers
+	 * @param found If not null, set to how many markers were found
+	 * @return The text between the last two markers, or null
+	 * @throws IOException
+	 */
+	static String scan(Reader reader, String []markers, int []found) throws IOException{
+		StringBuilder window = new StringBuilder();
+		char []buffer = new char[8192];
+		int marker = 0;
+		int searchFrom = 0;
+		int captureStart = -1;
+		int n;
+		while ((n=reader.read(buffer))!=-1){
+			window.append(buffer, 0, n);
+			int index;
+			while ((index=window.indexOf(markers[marker], searchFrom))!=-1){
+				if (found!=null)
+					found[0] = marker+1;
+				if (marker==markers.length-1)
+					return window.substring(captureStart, index);
+				searchFrom = index+markers[marker].length();
+				marker++;
+				if (marker==markers.length-1)
+					captureStart = searchFrom;
+			}
+			int keep = markers[marker].length()-1;
+			if (captureStart==-1){
+				window.delete(0, Math.max(searchFrom, window.length()-keep));
+				searchFrom = 0;
+			}else{
+				window.delete(0, captureStart);
+				captureStart = 0;
+				if (window.length()>MAX_EXTRACT_LENGTH)
+					return null;
+				searchFrom = Math.max(0, window.length()-keep);
+			}
+		}
+		return null;
+	}
+	
+	private static URLConnection open(String fullUrl, PageCache.Entry cached) throws IOException{
+		URLConnection con = new URL(fullUrl).openConnection();
+		con.setConnectTimeout(CONNECT_TIMEOUT);
+		con.setReadTimeout(READ_TIMEOUT);
+		con.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		if (cached!=null){
+			if (!StringOps.isEmpty(cached.etag))
+				con.setRequestProperty("If-None-Match", cached.etag);
+			if (!StringOps.isEmpty(cached.lastModified))
+				con.setRequestProperty("If-Modified-Since", cached.lastModified);
+		}
+		return con;
+	}
+	
+	/**
+	 * Gets the response body, uncompressing it if the server sent it gzipped or deflated
+	 * @param con
+	 * @return
+	 * @throws IOException
+	 */
+	private static InputStream getInputStream(URLConnection con) throws IOException{
+		InputStream in = con.getInputStream();
+		String encoding = con.getContentEncoding();
+		if ("gzip".equalsIgnoreCase(encoding))
+			return new GZIPInputStream(in);
+		if ("deflate".equalsIgnoreCase(encoding))
+			return new InflaterInputStream(in);
+		return in;
+	}
+	
+	private static boolean isNotModified(URLConnection con, PageCache.Entry cached) throws IOException{
+		return (cached!=null)&&(con instanceof HttpURLConnection)
+				&&(((HttpURLConnection)con).getResponseCode()==HttpURLConnection.HTTP_NOT_MODIFIED);
+	}
+	
+	private static String join(String []markers){
+		StringBuilder joined = new StringBuilder();
+		for(String marker:markers){
+			joined.append(marker).append('\n');
 		}
-		
-		return retVal;
+		return joined.toString();
 	}
 	
 	public static String getUrl(String urlString){
@@ -0,0 +1,57 @@
+package main.pipeline;
+
+import main.process.Progress;
+
+/**
+ * How far a batch got: how many songs went in, how each one ended and how long it took.
+ * JobScheduler.getCompletion() gives the final one, getProgress() one for right now.
+ */
+public class BatchResult {
+
+	public final int total;
+	public final int done;
+	public final int failed;
+	public final int cancelled;
+	public final long bytesDownloaded;
+	public final long elapsedMillis;
+	/** True if the batch was cancelled instead of running to the end */
+	public final boolean stopped;
+	/** About how long until every song is finished, -1 if not known yet */
+	public final long etaSeconds;
+
+	public BatchResult(int total, int done, int failed, int cancelled, long bytesDownloaded, long elapsedMillis, boolean stopped, long etaSeconds){
+		this.total = total;
+		this.done = done;
+		this.failed = failed;
+		this.cancelled = cancelled;
+		this.bytesDownloaded = bytesDownloaded;
+		this.elapsedMillis = elapsedMillis;
+		this.stopped = stopped;
+		this.etaSeconds = etaSeconds;
+	}
+
+	/**
+	 * @return Songs that went in and haven't finished one way or another
+	 */
+	public int getUnfinished(){
+		return total-done-failed-cancelled;
+	}
+
+	/**
+	 * @return Songs made per minute since the batch started
+	 */
+	public double getSongsPerMinute(){
+		if (elapsedMillis<=0)
+			return 0;
+		return done*60000.0/elapsedMillis;
+	}
+
+	@Override
+	public String toString(){
+		String text = done+" done, "+failed+" failed, "+cancelled+" cancelled of "+total
+				+String.format(" in %.1f min (%.1f songs/min)", elapsedMillis/60000.0, getSongsPerMinute());
+		if ((etaSeconds>0)&&(getUnfinished()>0))
+			text += ", about "+Progress.formatTime(etaSeconds)+" left";
+		return text;
+	}
+}
@@ -0,0 +1,135 @@
+package main.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.web.CircuitBreaker;
+
+/**
+ * Finds a stage's limit on its own while a batch runs, instead of it being hand tuned per machine.
+ * Every tick it looks at how many tasks finished and how long they took since the last tick.
+ *
+ * Like TCP it starts by doubling the limit, then adds one while the stage is full and finished
+ * songs per minute keep up. When youtube throttles or hangs, refuses requests, or tasks get much slower
+ * without more of them finishing, the limit is halved. The limit stays between min and max.
+ */
+public class ConcurrencyController {
+
+	private Stage stage;
+	private IBatchListener listener;
+	private long tickMillis;
+	private Thread thread;
+	private volatile boolean stopped = false;
+	private volatile int min;
+	private volatile int max;
+	private AtomicInteger failures = new AtomicInteger();
+	private boolean slowStart = true;
+	private long lastCompleted = 0;
+	private long lastBusyNanos = 0;
+	private double lastPerMinute = 0;
+	private double bestLatency = 0;
+	private volatile double perMinute = 0;
+
+	/**
+	 * @param stage
+	 * @param min
+	 * @param max 0 for no upper bound
+	 * @param tickMillis How often to adjust the limit
+	 * @param listener Told whenever the limit changes
+	 */
+	public ConcurrencyController(Stage stage, int min, int max, long tickMillis, IBatchListener listener){
+		this.stage = stage;
+		this.listener = listener;
+		this.tickMillis = tickMillis;
+		setBounds(min, max);
+		stage.setLimit(Math.min(this.max, Math.max(this.min, 2)));
+	}
+
+	public void start(){
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!stopped){
+						Thread.sleep(tickMillis);
+						tick();
+					}
+				} catch (InterruptedException e) {
+					//Stopped
+				}
+			}
+		}, stage.getName()+"-controller");
+		thread.setDaemon(true);
+		thread.start();
+		listener.stageLimitChanged(stage.getName(), stage.getLimit());
+	}
+
+	public void stop(){
+		stopped = true;
+		if (thread!=null)
+			thread.interrupt();
+	}
+
+	/**
+	 * @param min
+	 * @param max 0 for no upper bound
+	 */
+	public void setBounds(int min, int max){
+		this.min = Math.max(1, min);
+		this.max = (max<=0) ? Integer.MAX_VALUE : Math.max(this.min, max);
+		int limit = stage.getLimit();
+		if ((limit<this.min)||(limit>this.max)||(limit==0))
+			setLimit(Math.min(this.max, Math.max(this.min, limit)));
+	}
+
+	/**
+	 * Called when a task in the stage failed in a way that says the limit is too high, e.g. it was throttled
+	 */
+	public void failed(){
+		failures.incrementAndGet();
+	}
+
+	/**
+	 * @return Tasks finished per minute over the last tick
+	 */
+	public double getPerMinute(){
+		return perMinute;
+	}
+
+	void tick(){
+		long completed = stage.getCompleted();
+		long busy = stage.getBusyNanos();
+		long done = completed-lastCompleted;
+		double latency = (done==0) ? 0 : (busy-lastBusyNanos)/(double)done;
+		lastCompleted = completed;
+		lastBusyNanos = busy;
+		perMinute = done*60000.0/tickMillis;
+
+		int limit = stage.getLimit();
+		boolean full = (stage.getRunning()>=limit)||(stage.getQueued()>0);
+		if ((failures.getAndSet(0)>0)||(CircuitBreaker.get().isOpen())){
+			slowStart = false;
+			setLimit(limit/2);
+		}else if (done>0){
+			if ((bestLatency==0)||(latency<bestLatency))
+				bestLatency = latency;
+			boolean slower = latency>2*bestLatency;
+			boolean keepingUp = perMinute>=lastPerMinute*0.9;
+			if (slower && !keepingUp){
+				slowStart = false;
+				setLimit(limit/2);
+			}else if (full){
+				setLimit(slowStart ? limit*2 : limit+1);
+			}
+		}
+		if (done>0)
+			lastPerMinute = perMinute;
+	}
+
+	private void setLimit(int limit){
+		limit = Math.min(max, Math.max(min, limit));
+		if (limit==stage.getLimit())
+			return;
+		stage.setLimit(limit);
+		listener.stageLimitChanged(stage.getName(), limit);
+	}
+}
@@ -0,0 +1,13 @@
+package main.pipeline;
+
+import main.song.SongController;
+
+public interface IBatchListener {
+	public void songAdded(SongController cont);
+	public void songStateChanged(SongController cont, JobState state);
+	public void batchDone();
+	/**
+	 * A stage's limit was changed by its ConcurrencyController
+	 */
+	public void stageLimitChanged(String stage, int limit);
+}
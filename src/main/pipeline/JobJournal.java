@@ -0,0 +1,240 @@
+package main.pipeline;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import main.Config;
+
+/**
+ * Writes down every state a song goes through, so a batch that was cut off by a crash or by
+ * closing the program can be picked up again. Only songs that never reached DONE, FAILED or
+ * CANCELLED are resumed.
+ *
+ * The file is append-only, one tab separated line per state change, and is flushed after every
+ * line. Finished songs are dropped from memory, and once the file holds many more lines than
+ * unfinished songs it is rewritten with just those, plus a first line keeping the next id so
+ * ids stay unique across runs.
+ *
+ * Settings in config.txt: job_journal_file
+ */
+public class JobJournal {
+
+	private static JobJournal thiz;
+	private static final String NEXT_ID = "next_id";
+
+	private File file;
+	private LinkedHashMap<Integer, Entry> unfinished;
+	private BufferedWriter writer;
+	private int lines = 0;
+	private int nextId = 1;
+
+	public static class Entry{
+		public final int id;
+		public final JobState state;
+		public final String downloadDir;
+		public final String input;
+
+		Entry(int id, JobState state, String downloadDir, String input){
+			this.id = id;
+			this.state = state;
+			this.downloadDir = downloadDir;
+			this.input = input;
+		}
+	}
+
+	public static synchronized JobJournal get(){
+		if (thiz==null){
+			thiz = new JobJournal(new File(Config.get("job_journal_file", "cache/jobs.txt")));
+		}
+		return thiz;
+	}
+
+	public JobJournal(File file){
+		this.file = file;
+	}
+
+	/**
+	 * Gets an id no song in the journal has used, this run or an earlier one
+	 * @return
+	 */
+	public synchronized int nextId(){
+		load();
+		return nextId++;
+	}
+
+	/**
+	 * Writes down a song's new state
+	 * @param id
+	 * @param state
+	 * @param downloadDir
+	 * @param input The song line
+	 */
+	public synchronized void record(int id, JobState state, String downloadDir, String input){
+		load();
+		Entry entry = new Entry(id, state, clean(downloadDir), clean(input==null ? null : input.replace("\t", " - ")));
+		if (state.isFinal()){
+			unfinished.remove(id);
+		}else{
+			unfinished.put(id, entry);
+		}
+		nextId = Math.max(nextId, id+1);
+		try {
+			if (writer==null){
+				file.getAbsoluteFile().getParentFile().mkdirs();
+				boolean cutOff = !endsWithNewline();
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+				if (cutOff)
+					writer.write("\n");
+			}
+			writer.write(toLine(entry));
+			writer.flush();
+			lines++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (lines>2*unfinished.size()+1000)
+			compact();
+	}
+
+	/**
+	 * Gets the songs that were never finished, oldest first
+	 * @return
+	 */
+	public synchronized List<Entry> getUnfinished(){
+		load();
+		ArrayList<Entry> entries = new ArrayList<Entry>(unfinished.values());
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.id<b.id ? -1 : (a.id==b.id ? 0 : 1);
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * Marks every unfinished song as cancelled, so none of them are resumed
+	 */
+	public synchronized void cancelAll(){
+		for(Entry entry:getUnfinished()){
+			record(entry.id, JobState.CANCELLED, entry.downloadDir, entry.input);
+		}
+	}
+
+	private void load(){
+		if (unfinished!=null)
+			return;
+		unfinished = new LinkedHashMap<Integer, Entry>();
+		File temp = new File(file.getPath()+".tmp");
+		if (!file.exists() && temp.exists()){
+			//Crashed while compacting
+			temp.renameTo(file);
+		}
+		if (!file.exists())
+			return;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try{
+				String line;
+				while ((line=reader.readLine())!=null){
+					lines++;
+					String []split = line.split("\t", -1);
+					if ((split.length==2)&&split[0].equals(NEXT_ID)){
+						try{
+							nextId = Math.max(nextId, Integer.parseInt(split[1]));
+						}catch(NumberFormatException e){
+							//Half written line from a crash
+						}
+						continue;
+					}
+					if (split.length<4)
+						continue;
+					try{
+						Entry entry = new Entry(Integer.parseInt(split[0]), JobState.valueOf(split[1]), split[2], split[3]);
+						if (entry.state.isFinal()){
+							unfinished.remove(entry.id);
+						}else{
+							unfinished.put(entry.id, entry);
+						}
+						nextId = Math.max(nextId, entry.id+1);
+					}catch(IllegalArgumentException e){
+						//Half written line from a crash
+					}
+				}
+			}finally{
+				reader.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (lines>2*unfinished.size()+100)
+			compact();
+	}
+
+	/**
+	 * Rewrites the file with only the unfinished songs, after a line with the next id
+	 */
+	private void compact(){
+		File temp = new File(file.getPath()+".tmp");
+		try {
+			if (writer!=null){
+				writer.close();
+				writer = null;
+			}
+			file.getAbsoluteFile().getParentFile().mkdirs();
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+			try{
+				out.write(NEXT_ID+"\t"+nextId+"\n");
+				for(Entry entry:unfinished.values()){
+					out.write(toLine(entry));
+				}
+			}finally{
+				out.close();
+			}
+			file.delete();
+			temp.renameTo(file);
+			lines = unfinished.size()+1;
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Checks the last line was written whole, so a line cut off by a crash isn't joined onto the next one
+	 * @return true for an empty or missing file
+	 */
+	private boolean endsWithNewline() throws IOException{
+		if (file.length()==0)
+			return true;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try{
+			in.seek(file.length()-1);
+			return in.read()=='\n';
+		}finally{
+			in.close();
+		}
+	}
+	
+	private static String toLine(Entry entry){
+		return entry.id+"\t"+entry.state.name()+"\t"+entry.downloadDir+"\t"+entry.input+"\n";
+	}
+
+	private static String clean(String field){
+		if (field==null)
+			return "";
+		return field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+}
@@ -0,0 +1,176 @@
+package main.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.Config;
+
+/**
+ * Keeps every line each song logged, including all of youtube-dl's and ffmpeg's output, in
+ * files on disk. The window only shows a song's latest line, so this is where to look when
+ * a song went wrong. Each line starts with the time and the song's job id.
+ *
+ * Songs share one file so thousands of songs don't make thousands of files. Once it is too
+ * big it is renamed jobs.1.log, the older ones move up by one and the oldest is deleted.
+ *
+ * Lines are written by a thread of their own, since most come from the process supervisor's
+ * threads, which shouldn't wait on the disk. It flushes whenever it runs out of lines. If the
+ * disk falls far behind, lines are dropped and the log says how many.
+ *
+ * Settings in config.txt: job_log_dir, job_log_max_mb, job_log_files
+ */
+public class JobLog {
+
+	private static JobLog thiz;
+
+	private File dir;
+	private long maxBytes;
+	private int files;
+	private BufferedWriter writer;
+	private long size;
+	private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private volatile boolean broken = false;
+	private LinkedBlockingQueue<Line> queue = new LinkedBlockingQueue<Line>(MAX_QUEUED);
+	private AtomicInteger dropped = new AtomicInteger();
+	private Thread thread;
+	private static final int MAX_QUEUED = 10000;
+
+	private static class Line{
+		final long time;
+		final int jobId;
+		final String text;
+
+		Line(long time, int jobId, String text){
+			this.time = time;
+			this.jobId = jobId;
+			this.text = text;
+		}
+	}
+
+	public static synchronized JobLog get(){
+		if (thiz==null){
+			thiz = new JobLog(new File(Config.get("job_log_dir", "cache/logs")),
+					Config.getLong("job_log_max_mb", 10)*1024*1024, Config.getInt("job_log_files", 5));
+		}
+		return thiz;
+	}
+
+	/**
+	 * @param dir
+	 * @param maxBytes How big a file gets before it is rotated
+	 * @param files How many files to keep, counting the one being written
+	 */
+	public JobLog(File dir, long maxBytes, int files){
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.files = Math.max(1, files);
+	}
+
+	/**
+	 * Queues a line a song logged to be written down. Never waits.
+	 * @param jobId
+	 * @param line
+	 */
+	public void write(int jobId, String line){
+		if (broken)
+			return;
+		start();
+		if (!queue.offer(new Line(System.currentTimeMillis(), jobId, line)))
+			dropped.incrementAndGet();
+	}
+
+	private synchronized void start(){
+		if (thread!=null)
+			return;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true){
+						writeLine(queue.take());
+						Line line;
+						while ((line=queue.poll())!=null){
+							writeLine(line);
+						}
+						flush();
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		}, "JobLog");
+		thread.setDaemon(true);
+		thread.start();
+		//The thread is a daemon, so whatever is still queued is written on the way out
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Line line;
+				while ((line=queue.poll())!=null){
+					writeLine(line);
+				}
+				flush();
+			}
+		}));
+	}
+
+	private synchronized void writeLine(Line line){
+		if (broken)
+			return;
+		String date = dateFormat.format(new Date(line.time));
+		String text = date+" ["+line.jobId+"] "+line.text+"\n";
+		int lost = dropped.getAndSet(0);
+		if (lost>0)
+			text = date+" "+lost+" lines weren't logged, the disk couldn't keep up\n"+text;
+		try {
+			if (writer==null)
+				open();
+			writer.write(text);
+			size += text.length();
+			if (size>maxBytes)
+				rotate();
+		} catch (IOException e) {
+			//Keep downloading without a log rather than failing every song
+			e.printStackTrace();
+			broken = true;
+		}
+	}
+
+	private synchronized void flush(){
+		if (broken||(writer==null))
+			return;
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			broken = true;
+		}
+	}
+
+	private void open() throws IOException{
+		dir.mkdirs();
+		File file = getFile(0);
+		size = file.length();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+	}
+
+	private void rotate() throws IOException{
+		writer.close();
+		writer = null;
+		getFile(files-1).delete();
+		for(int i=files-2;i>=0;i--){
+			getFile(i).renameTo(getFile(i+1));
+		}
+		open();
+	}
+
+	private File getFile(int index){
+		return new File(dir, (index==0) ? "jobs.log" : "jobs."+index+".log");
+	}
+}
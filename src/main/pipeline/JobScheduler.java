@@ -0,0 +1,660 @@
+package main.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Config;
+import main.process.CpuBudget;
+import main.song.BatchDownload;
+import main.song.IBatchDownloadListener;
+import main.song.SongController;
+import main.web.Backoff;
+import main.web.CircuitBreaker;
+
+/**
+ * Runs song lines through the resolve, download, transcode and tag stages.
+ * Each stage has its own concurrency limit and a bounded queue in front of it,
+ * so a full stage holds back the one before it instead of piling up work.
+ * Songs whose youtube-dl or ffmpeg hung are put back in their stage a few times.
+ *
+ * Settings in config.txt: hung_retries
+ */
+public class JobScheduler implements IBatchDownloadListener{
+
+	public static final String RESOLVE = "Resolve";
+	public static final String DOWNLOAD = "Download";
+	public static final String TRANSCODE = "Convert";
+	public static final String TAG = "Tag";
+	
+	private Stage resolveStage;
+	private Stage downloadStage;
+	private Stage transcodeStage;
+	private Stage tagStage;
+	private ConcurrencyController downloadController;
+	private IBatchListener listener;
+	private PipelineSettings settings;
+	private Thread feedThread;
+	private volatile SongListReader songList;
+	private AtomicInteger pending = new AtomicInteger();
+	private AtomicInteger submitted = new AtomicInteger();
+	/** Songs that haven't ended, for the ETA */
+	private Set<SongController> active = ConcurrentHashMap.<SongController>newKeySet();
+	/** How many songs entered each state, by JobState.ordinal() */
+	private AtomicIntegerArray entered = new AtomicIntegerArray(JobState.values().length);
+	private CompletableFuture<BatchResult> completion = new CompletableFuture<BatchResult>();
+	private final long startMillis = System.currentTimeMillis();
+	private AtomicLong bytesDownloaded = new AtomicLong();
+	private ConcurrentHashMap<String, AtomicInteger> conversions = new ConcurrentHashMap<String, AtomicInteger>();
+	private JobJournal journal = JobJournal.get();
+	private AtomicBoolean doneFired = new AtomicBoolean(false);
+	private volatile boolean feeding = true;
+	private volatile boolean cancelled = false;
+	private volatile int batchSize;
+	private ConcurrentLinkedQueue<SongController> batchQueue = new ConcurrentLinkedQueue<SongController>();
+	/** Batch runners queued that haven't taken their songs yet, guarded by batchQueue */
+	private int batchRunners = 0;
+	private int hungRetries = Config.getInt("hung_retries", 2);
+	private Backoff retryBackoff = new Backoff(10000, 120000);
+	private ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Retry");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	public JobScheduler(IBatchListener listener, PipelineSettings settings){
+		this.listener = listener;
+		this.settings = settings;
+		batchSize = Math.max(1, settings.batchSize);
+		resolveStage = new Stage(RESOLVE, settings.resolveLimit, 50);
+		downloadStage = new Stage(DOWNLOAD, settings.downloadLimit, Math.max(1, settings.resolveAhead));
+		transcodeStage = new Stage(TRANSCODE, CpuBudget.fitLimit(settings.transcodeLimit), 10);
+		tagStage = new Stage(TAG, settings.tagLimit, 10);
+		if (settings.autoDownloadLimit){
+			downloadController = new ConcurrencyController(downloadStage, settings.autoMin, settings.downloadLimit,
+					Config.getLong("auto_limit_seconds", 10)*1000, listener);
+			downloadController.start();
+		}
+	}
+	
+	/**
+	 * Starts feeding songs from the list into the resolve stage on a background thread.
+	 * Only a few songs are read ahead of the resolve stage, and the list is closed at the end.
+	 * @param songs
+	 */
+	public void feed(final SongListReader songs){
+		songList = songs;
+		feedThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					String songLine;
+					while ((!cancelled)&&((songLine=songs.readSong())!=null)){
+						submit(songLine);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (InterruptedException e) {
+					//Cancelled
+				} finally {
+					try {
+						songs.close();
+					} catch (IOException e) {
+					}
+				}
+				finishedSubmitting();
+			}
+		}, "Feeder");
+		feedThread.start();
+	}
+	
+	/**
+	 * Starts feeding songs that a previous run never finished, on a background thread.
+	 * Each keeps its id and download folder. youtube-dl continues any .part file it left.
+	 * @param entries From JobJournal.getUnfinished()
+	 */
+	public void resume(final List<JobJournal.Entry> entries){
+		feedThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					resumeNow(entries);
+				} catch (InterruptedException e) {
+					//Cancelled
+				}
+				finishedSubmitting();
+			}
+		}, "Feeder");
+		feedThread.start();
+	}
+	
+	/**
+	 * Queues songs that a previous run never finished, blocking while the resolve queue is full
+	 * @param entries From JobJournal.getUnfinished()
+	 * @throws InterruptedException
+	 */
+	public void resumeNow(List<JobJournal.Entry> entries) throws InterruptedException{
+		for(JobJournal.Entry entry:entries){
+			if (cancelled)
+				break;
+			submit(entry.input, entry.downloadDir, entry.id);
+		}
+	}
+	
+	/**
+	 * Queues a single song line, blocking while the resolve queue is full.
+	 * The song shows up in the listener right away and is searched for in the background.
+	 * @param songLine
+	 * @throws InterruptedException
+	 */
+	public void submit(String songLine) throws InterruptedException{
+		submit(songLine, settings.downloadDir, journal.nextId());
+	}
+	
+	private void submit(String songLine, String downloadDir, int id) throws InterruptedException{
+		final SongController cont = new SongController(songLine);
+		cont.setId(id);
+		cont.setDownloadDir(downloadDir);
+		cont.setKeepVideo(settings.keepVideo);
+		cont.setStreaming(settings.streaming);
+		cont.setAudioOnly(settings.audioOnly);
+		cont.setKeepAudioFormat(settings.keepAudioFormat);
+		pending.incrementAndGet();
+		submitted.incrementAndGet();
+		active.add(cont);
+		listener.songAdded(cont);
+		setState(cont, JobState.QUEUED);
+		try{
+			resolveStage.submit(guard(cont, new Runnable() {
+				@Override
+				public void run() {
+					resolve(cont);
+				}
+			}));
+		}catch(InterruptedException e){
+			setState(cont, JobState.CANCELLED);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Called once every song line has been submitted, so the batch can finish when they are done.
+	 */
+	public void finishedSubmitting(){
+		feeding = false;
+		checkDone();
+	}
+	
+	private void resolve(final SongController cont){
+		boolean resolved = false;
+		if (CircuitBreaker.get().isOpen()){
+			cont.log("Youtube is refusing requests, waiting");
+			try {
+				CircuitBreaker.get().awaitClosed();
+			} catch (InterruptedException e) {
+				jobDone(cont);
+				return;
+			}
+		}
+		if (!cancelled && !cont.isCancelled()){
+			setState(cont, JobState.RESOLVING);
+			try{
+				resolved = cont.resolve();
+			}catch(Exception e){
+				e.printStackTrace();
+				cont.log("Couldn't find a video for this song");
+			}
+		}
+		if (!resolved || cancelled){
+			jobDone(cont);
+			return;
+		}
+		setState(cont, JobState.RESOLVED);
+		if ((batchSize>1)&&(!cont.isStreaming())){
+			boolean newRunner;
+			synchronized (batchQueue) {
+				batchQueue.add(cont);
+				//Enough runners for every waiting song, and no more
+				newRunner = batchQueue.size()>batchRunners*batchSize;
+				if (newRunner)
+					batchRunners++;
+			}
+			if (newRunner){
+				next(downloadStage, cont, new Runnable() {
+					@Override
+					public void run() {
+						downloadBatch();
+					}
+				});
+			}
+			return;
+		}
+		next(downloadStage, cont, downloadTask(cont));
+	}
+	
+	private Runnable downloadTask(final SongController cont){
+		return new Runnable() {
+			@Override
+			public void run() {
+				download(cont);
+			}
+		};
+	}
+	
+	/**
+	 * Takes up to batchSize waiting songs and downloads them with one youtube-dl process.
+	 * A runner is only queued when the waiting songs outnumber what the queued runners will
+	 * take, so runners don't come up empty and skew the download stage's stats.
+	 */
+	private void downloadBatch(){
+		ArrayList<SongController> conts = new ArrayList<SongController>();
+		SongController cont;
+		synchronized (batchQueue) {
+			batchRunners--;
+			while ((conts.size()<batchSize)&&((cont=batchQueue.poll())!=null)){
+				conts.add(cont);
+			}
+		}
+		if (conts.isEmpty())
+			return;
+		for(SongController c:conts){
+			setState(c, JobState.DOWNLOADING);
+		}
+		try{
+			new BatchDownload(conts, this).run();
+		}catch(RuntimeException e){
+			e.printStackTrace();
+			//Songs the batch already handed on are left to their stage
+			for(SongController c:conts){
+				if (c.getState()==JobState.DOWNLOADING)
+					failed(c, e);
+			}
+		}
+	}
+	
+	@Override
+	public void videoDownloaded(final SongController cont, boolean downloaded) {
+		if (cont.isCancelled()||(!downloaded)){
+			downloadFailed(cont);
+			//Tried again on its own, not with a later batch
+			if (!retryHung(cont, downloadStage, downloadTask(cont)))
+				jobDone(cont);
+			return;
+		}
+		next(transcodeStage, cont, new Runnable() {
+			@Override
+			public void run() {
+				transcode(cont);
+			}
+		});
+	}
+	
+	private void download(final SongController cont){
+		setState(cont, JobState.DOWNLOADING);
+		if (cont.isStreaming()){
+			stream(cont);
+			return;
+		}
+		if (cont.isCancelled()||(!cont.downloadVideo())){
+			downloadFailed(cont);
+			if (!retryHung(cont, downloadStage, downloadTask(cont)))
+				jobDone(cont);
+			return;
+		}
+		next(transcodeStage, cont, new Runnable() {
+			@Override
+			public void run() {
+				transcode(cont);
+			}
+		});
+	}
+	
+	/**
+	 * Downloads and converts on the download stage in one pass, skipping the transcode stage.
+	 */
+	private void stream(final SongController cont){
+		if (cont.isCancelled()||(!cont.streamToMp3())){
+			downloadFailed(cont);
+			if (!retryHung(cont, downloadStage, downloadTask(cont)))
+				jobDone(cont);
+			return;
+		}
+		next(tagStage, cont, new Runnable() {
+			@Override
+			public void run() {
+				tag(cont);
+			}
+		});
+	}
+	
+	/**
+	 * Tells the download controller about a failure that means youtube is overloaded: it throttled
+	 * us, a download hung or the circuit breaker is open. A private or removed video, or one ffmpeg
+	 * couldn't convert, says nothing about how many downloads should run at once.
+	 * @param cont
+	 */
+	private void downloadFailed(SongController cont){
+		if ((downloadController==null)||cont.isCancelled())
+			return;
+		if (cont.isThrottled()||cont.isHung()||CircuitBreaker.get().isOpen())
+			downloadController.failed();
+	}
+	
+	private void transcode(final SongController cont){
+		setState(cont, JobState.CONVERTING);
+		cont.setFfmpegThreads(CpuBudget.getThreadsPerProcess(transcodeStage.getLimit()));
+		if (cont.isCancelled()||(!cont.convertVideo())){
+			if (!retryHung(cont, transcodeStage, new Runnable() {
+				@Override
+				public void run() {
+					transcode(cont);
+				}
+			}))
+				jobDone(cont);
+			return;
+		}
+		next(tagStage, cont, new Runnable() {
+			@Override
+			public void run() {
+				tag(cont);
+			}
+		});
+	}
+	
+	private void tag(SongController cont){
+		if (cont.isCancelled()){
+			jobDone(cont);
+			return;
+		}
+		setState(cont, JobState.TAGGING);
+		cont.tagSong();
+		countConversion(cont.getConversion());
+		setState(cont, JobState.DONE);
+	}
+	
+	/**
+	 * Hands a job to the next stage, waiting for room in its queue.
+	 */
+	private void next(Stage stage, SongController cont, Runnable task){
+		try {
+			stage.submit(guard(cont, task));
+		} catch (InterruptedException e) {
+			jobDone(cont);
+		}
+	}
+	
+	/**
+	 * Wraps a song's task so that if it throws, the song ends as FAILED instead of being left
+	 * half way, which would keep the batch from ever finishing
+	 * @param cont
+	 * @param task
+	 * @return
+	 */
+	private Runnable guard(final SongController cont, final Runnable task){
+		return new Runnable() {
+			@Override
+			public void run() {
+				try{
+					task.run();
+				}catch(RuntimeException e){
+					e.printStackTrace();
+					failed(cont, e);
+				}
+			}
+		};
+	}
+	
+	private void failed(SongController cont, RuntimeException e){
+		cont.log("Something went wrong: "+e);
+		jobDone(cont);
+	}
+	
+	/**
+	 * Puts a song whose youtube-dl or ffmpeg hung back into a stage after a pause. Its slot is
+	 * free as soon as the failed task returns, so other songs go ahead in the meantime.
+	 * @param cont
+	 * @param stage
+	 * @param task
+	 * @return false if the song didn't hang, or has been tried enough
+	 */
+	private boolean retryHung(final SongController cont, final Stage stage, final Runnable task){
+		if (cancelled||cont.isCancelled()||(!cont.isHung())||(cont.getRetries()>=hungRetries))
+			return false;
+		int attempt = cont.retrying();
+		cont.log("Trying again ("+attempt+" of "+hungRetries+")");
+		try{
+			retryTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					next(stage, cont, task);
+				}
+			}, retryBackoff.delay(attempt-1), TimeUnit.MILLISECONDS);
+		}catch(RejectedExecutionException e){
+			//Cancelled
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Takes a song that didn't make it out of the pipeline
+	 * @param cont
+	 */
+	private void jobDone(SongController cont){
+		setState(cont, cont.isCancelled() ? JobState.CANCELLED : JobState.FAILED);
+	}
+	
+	/**
+	 * Moves a song to a new state and counts it. A song that has already ended is left
+	 * alone, so every song ends, and is counted towards the batch, exactly once.
+	 * @param cont
+	 * @param state
+	 */
+	private void setState(SongController cont, JobState state){
+		if (!cont.setState(state))
+			return;
+		entered.incrementAndGet(state.ordinal());
+		journal.record(cont.getId(), state, cont.getDownloadDir(), cont.getInput());
+		listener.songStateChanged(cont, state);
+		if (state.isFinal()){
+			active.remove(cont);
+			bytesDownloaded.addAndGet(cont.getBytesDownloaded());
+			pending.decrementAndGet();
+			checkDone();
+		}
+	}
+	
+	private void checkDone(){
+		if ((!feeding)&&(pending.get()<=0)){
+			fireDone();
+		}
+	}
+	
+	private void fireDone(){
+		if (doneFired.compareAndSet(false, true)){
+			stopStages();
+			completion.complete(getProgress());
+			listener.batchDone();
+		}
+	}
+	
+	/**
+	 * Stops feeding and drops everything still queued. Songs already running
+	 * need to be cancelled by their controllers. The listener is not told the
+	 * batch is done since the caller already knows, but getCompletion() completes
+	 * with the songs counted so far. Nothing from the batch will be resumed.
+	 */
+	public void cancel(){
+		cancelled = true;
+		if (feedThread!=null)
+			feedThread.interrupt();
+		if (doneFired.compareAndSet(false, true)){
+			stopStages();
+			completion.complete(getProgress());
+		}
+		journal.cancelAll();
+	}
+	
+	private void stopStages(){
+		if (downloadController!=null)
+			downloadController.stop();
+		retryTimer.shutdownNow();
+		resolveStage.stop();
+		downloadStage.stop();
+		transcodeStage.stop();
+		tagStage.stop();
+	}
+	
+	/**
+	 * Changes how many songs a stage may work on at once. Converting is CPU bound,
+	 * so its limit is kept to the number of cores and 0 means one per core.
+	 * A download limit picked automatically only has its upper bound changed.
+	 * @param stageName
+	 * @param limit
+	 */
+	public void setLimit(String stageName, int limit){
+		if (TRANSCODE.equals(stageName))
+			limit = CpuBudget.fitLimit(limit);
+		if (DOWNLOAD.equals(stageName)&&(downloadController!=null)){
+			downloadController.setBounds(settings.autoMin, limit);
+			return;
+		}
+		Stage stage = getStage(stageName);
+		if (stage!=null)
+			stage.setLimit(limit);
+	}
+	
+	public Stage getStage(String stageName){
+		if (RESOLVE.equals(stageName))
+			return resolveStage;
+		if (DOWNLOAD.equals(stageName))
+			return downloadStage;
+		if (TRANSCODE.equals(stageName))
+			return transcodeStage;
+		if (TAG.equals(stageName))
+			return tagStage;
+		return null;
+	}
+	
+	public int getPending(){
+		return pending.get();
+	}
+	
+	/**
+	 * Gets how many songs have been in a state, counting each song once per state it entered.
+	 * For DONE, FAILED and CANCELLED this is how many songs ended that way.
+	 * @param state
+	 * @return
+	 */
+	public int getCount(JobState state){
+		return entered.get(state.ordinal());
+	}
+	
+	/**
+	 * Gets how far the batch is right now
+	 * @return
+	 */
+	public BatchResult getProgress(){
+		int total = submitted.get();
+		int ended = getCount(JobState.DONE)+getCount(JobState.FAILED)+getCount(JobState.CANCELLED);
+		long elapsed = System.currentTimeMillis()-startMillis;
+		return new BatchResult(total, getCount(JobState.DONE), getCount(JobState.FAILED), getCount(JobState.CANCELLED),
+				bytesDownloaded.get(), elapsed, cancelled, estimateSeconds(total, ended, elapsed));
+	}
+	
+	/**
+	 * Guesses how long the rest of the batch takes from how fast it went so far. Songs still
+	 * running count as far as their download or conversion has got, so the guess moves
+	 * smoothly instead of jumping each time a song ends.
+	 * @return -1 if nothing has got anywhere yet
+	 */
+	private long estimateSeconds(int total, int ended, long elapsedMillis){
+		double work = ended;
+		for(SongController cont:active){
+			work += cont.getProgressFraction();
+		}
+		if ((work<=0)||(elapsedMillis<=0))
+			return -1;
+		return (long)(Math.max(0, total-work)*elapsedMillis/work/1000);
+	}
+	
+	/**
+	 * @return Songs left out of the list fed in because they were already in it
+	 */
+	public int getDuplicates(){
+		SongListReader songs = songList;
+		return (songs==null) ? 0 : songs.getDuplicates();
+	}
+	
+	/**
+	 * Completes once, when the last song of the batch has ended or the batch is cancelled.
+	 * Use it to wait for a batch or to start another one after it.
+	 * @return
+	 */
+	public CompletableFuture<BatchResult> getCompletion(){
+		return completion;
+	}
+	
+	/**
+	 * Gets how long each stage's tasks took on average, e.g. for the log
+	 * @return
+	 */
+	public String getStageStats(){
+		String stats = "";
+		for(Stage stage:new Stage[]{resolveStage, downloadStage, transcodeStage, tagStage}){
+			if (stats.length()>0)
+				stats += ", ";
+			stats += stage.getName()+" "+stage.getCompleted()+" x "+String.format("%.1fs", stage.getAverageSeconds());
+		}
+		return stats;
+	}
+	
+	private void countConversion(String conversion){
+		if (conversion==null)
+			return;
+		AtomicInteger count = conversions.get(conversion);
+		if (count==null){
+			conversions.putIfAbsent(conversion, new AtomicInteger());
+			count = conversions.get(conversion);
+		}
+		count.incrementAndGet();
+	}
+	
+	/**
+	 * Gets how many finished songs were made each way, e.g. "copy m4a" or "encode mp3"
+	 * @return
+	 */
+	public Map<String, Integer> getConversions(){
+		TreeMap<String, Integer> counts = new TreeMap<String, Integer>();
+		for(Map.Entry<String, AtomicInteger> entry:conversions.entrySet()){
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+	
+	/**
+	 * Gets how much finished songs fetched from youtube, to see what audio-only and the MediaStore save
+	 * @return
+	 */
+	public long getBytesDownloaded(){
+		return bytesDownloaded.get();
+	}
+}
@@ -0,0 +1,20 @@
+package main.pipeline;
+
+/**
+ * Where a song is in the pipeline. DONE, FAILED and CANCELLED are final.
+ */
+public enum JobState {
+	QUEUED,
+	RESOLVING,
+	RESOLVED,
+	DOWNLOADING,
+	CONVERTING,
+	TAGGING,
+	DONE,
+	FAILED,
+	CANCELLED;
+	
+	public boolean isFinal(){
+		return (this==DONE)||(this==FAILED)||(this==CANCELLED);
+	}
+}
@@ -0,0 +1,31 @@
+package main.pipeline;
+
+import main.process.CpuBudget;
+
+/**
+ * Everything a JobScheduler needs to know to run a batch, filled in by the window or the command line.
+ */
+public class PipelineSettings {
+
+	/** How many searches may run at once */
+	public int resolveLimit = 8;
+	/** How many found songs may wait for a download slot */
+	public int resolveAhead = 20;
+	/** The most downloads at once when autoDownloadLimit is on, 0 for no limit */
+	public int downloadLimit = 20;
+	/** Let a ConcurrencyController pick the download limit, between autoMin and downloadLimit */
+	public boolean autoDownloadLimit = true;
+	public int autoMin = 1;
+	/** Kept to the number of cores, 0 for one per core */
+	public int transcodeLimit = CpuBudget.getCores();
+	public int tagLimit = 1;
+	/** Songs per youtube-dl process. 1 starts a process per song */
+	public int batchSize = 1;
+	public String downloadDir = ".";
+	public boolean keepVideo = false;
+	public boolean streaming = false;
+	/** Download just the audio track when youtube has one */
+	public boolean audioOnly = true;
+	/** Take M4A and Opus songs so their audio can be copied instead of encoded to MP3 */
+	public boolean keepAudioFormat = false;
+}
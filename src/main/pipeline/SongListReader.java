@@ -0,0 +1,361 @@
+package main.pipeline;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import main.song.ResolutionCache;
+
+/**
+ * Reads song lines one at a time from a text file, a CSV file or an M3U playlist, so a list
+ * of any length can go straight into the job queue without being loaded first.
+ *
+ * Songs already read are skipped, ignoring case and spacing like the resolution cache does.
+ * Only a 64 bit fingerprint of each song is kept for that, not the line itself.
+ *
+ * Text: one song per line.
+ * CSV: if the first row names the columns, the url column is used when it has a link and the
+ * artist and title columns otherwise. Without names every field of a row is joined with " - ".
+ * M3U: youtube links are used as they are, anything else by its #EXTINF title or file name.
+ */
+public class SongListReader implements Closeable{
+
+	public enum Format {TEXT, CSV, M3U}
+
+	private BufferedReader reader;
+	private Format format;
+	private Fingerprints seen = new Fingerprints();
+	private volatile int songs = 0;
+	private volatile int duplicates = 0;
+	private boolean firstLine = true;
+	//CSV
+	private char delimiter = 0;
+	private int urlColumn = -1;
+	private int artistColumn = -1;
+	private int titleColumn = -1;
+	//M3U
+	private String extinfTitle;
+
+	public SongListReader(Reader reader, Format format){
+		this.reader = (reader instanceof BufferedReader) ? (BufferedReader)reader : new BufferedReader(reader);
+		this.format = format;
+	}
+
+	/**
+	 * Opens a UTF-8 song list, picking the format from the file's extension
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static SongListReader open(File file) throws IOException{
+		return new SongListReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), formatOf(file.getName()));
+	}
+
+	/**
+	 * @param fileName
+	 * @return CSV for .csv, M3U for .m3u and .m3u8, TEXT for anything else
+	 */
+	public static Format formatOf(String fileName){
+		String name = fileName.toLowerCase();
+		if (name.endsWith(".csv"))
+			return Format.CSV;
+		if (name.endsWith(".m3u")||name.endsWith(".m3u8"))
+			return Format.M3U;
+		return Format.TEXT;
+	}
+
+	/**
+	 * Reads the next song that hasn't been read before
+	 * @return The song line, or null at the end of the list
+	 * @throws IOException
+	 */
+	public String readSong() throws IOException{
+		String song;
+		while ((song=readAny())!=null){
+			if (seen.add(fingerprint(ResolutionCache.normalize(song)))){
+				songs++;
+				return song;
+			}
+			duplicates++;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Songs returned so far
+	 */
+	public int getSongs(){
+		return songs;
+	}
+
+	/**
+	 * @return Songs skipped so far because they were already read
+	 */
+	public int getDuplicates(){
+		return duplicates;
+	}
+
+	@Override
+	public void close() throws IOException{
+		reader.close();
+	}
+
+	/**
+	 * Reads the next song, duplicate or not
+	 */
+	private String readAny() throws IOException{
+		String line;
+		while ((line=readLine())!=null){
+			String song;
+			switch(format){
+			case CSV:
+				song = parseCsv(line);
+				break;
+			case M3U:
+				song = parseM3u(line);
+				break;
+			default:
+				song = line;
+			}
+			if (song!=null){
+				song = song.trim();
+				if (song.length()>0)
+					return song;
+			}
+		}
+		return null;
+	}
+
+	private String readLine() throws IOException{
+		String line = reader.readLine();
+		if (firstLine&&(line!=null)){
+			firstLine = false;
+			if (line.startsWith("\uFEFF"))
+				line = line.substring(1);
+			if (format==Format.CSV)
+				return readHeader(line);
+		}
+		return line;
+	}
+
+	/**
+	 * Picks the delimiter and, if the first row names the columns, which ones to use
+	 * @return The first line back if it was a song rather than column names
+	 */
+	private String readHeader(String line) throws IOException{
+		delimiter = pickDelimiter(line);
+		ArrayList<String> fields = splitCsv(line);
+		for(int i=0;i<fields.size();i++){
+			String name = fields.get(i).trim().toLowerCase();
+			if (name.contains("uri")||name.endsWith(" id")||name.equals("id"))
+				continue;
+			if (((name.contains("url"))||(name.contains("link"))||(name.equals("youtube")))&&(urlColumn<0)){
+				urlColumn = i;
+			}else if (name.contains("artist")&&(artistColumn<0)){
+				artistColumn = i;
+			}else if ((name.contains("title")||name.contains("track")||name.contains("song")||name.equals("name"))&&(titleColumn<0)){
+				titleColumn = i;
+			}
+		}
+		if ((urlColumn<0)&&(artistColumn<0)&&(titleColumn<0))
+			return line;
+		return readLine();
+	}
+
+	private String parseCsv(String line) throws IOException{
+		ArrayList<String> fields = splitCsv(line);
+		if ((urlColumn<0)&&(artistColumn<0)&&(titleColumn<0)){
+			StringBuilder song = new StringBuilder();
+			for(String field:fields){
+				field = field.trim();
+				if (field.length()==0)
+					continue;
+				if (song.length()>0)
+					song.append(" - ");
+				song.append(field);
+			}
+			return song.toString();
+		}
+		String url = field(fields, urlColumn);
+		if (url.startsWith("http"))
+			return url;
+		String artist = field(fields, artistColumn);
+		String title = field(fields, titleColumn);
+		if (artist.length()==0)
+			return title;
+		if (title.length()==0)
+			return artist;
+		return artist+" - "+title;
+	}
+
+	private static String field(ArrayList<String> fields, int column){
+		if ((column<0)||(column>=fields.size()))
+			return "";
+		return fields.get(column).trim();
+	}
+
+	/**
+	 * Splits a CSV row, following quoted fields onto the next lines if they hold line breaks
+	 */
+	private ArrayList<String> splitCsv(String line) throws IOException{
+		ArrayList<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		int i = 0;
+		while (true){
+			if (i>=line.length()){
+				if (!quoted)
+					break;
+				String next = reader.readLine();
+				if (next==null)
+					break;
+				//Song lines are one line, so the break becomes a space
+				field.append(' ');
+				line = next;
+				i = 0;
+				continue;
+			}
+			char c = line.charAt(i++);
+			if (quoted){
+				if (c=='"'){
+					if ((i<line.length())&&(line.charAt(i)=='"')){
+						field.append('"');
+						i++;
+					}else{
+						quoted = false;
+					}
+				}else{
+					field.append(c);
+				}
+			}else if (c=='"'){
+				quoted = true;
+			}else if (c==delimiter){
+				fields.add(field.toString());
+				field.setLength(0);
+			}else{
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	/**
+	 * Spreadsheets export with commas, semicolons or tabs, whichever the first row has most of
+	 */
+	private static char pickDelimiter(String line){
+		int commas = 0, semicolons = 0, tabs = 0;
+		boolean quoted = false;
+		for(int i=0;i<line.length();i++){
+			char c = line.charAt(i);
+			if (c=='"')
+				quoted = !quoted;
+			else if (quoted)
+				continue;
+			else if (c==',')
+				commas++;
+			else if (c==';')
+				semicolons++;
+			else if (c=='\t')
+				tabs++;
+		}
+		if ((tabs>commas)&&(tabs>=semicolons))
+			return '\t';
+		if (semicolons>commas)
+			return ';';
+		return ',';
+	}
+
+	private String parseM3u(String line){
+		line = line.trim();
+		if (line.startsWith("#")){
+			//#EXTINF:201,Metallica - Bleeding Me
+			if (line.startsWith("#EXTINF:")){
+				int comma = line.indexOf(',');
+				extinfTitle = (comma>=0) ? line.substring(comma+1) : null;
+			}
+			return null;
+		}
+		if (line.length()==0)
+			return null;
+		String title = extinfTitle;
+		extinfTitle = null;
+		if (line.contains("youtube.com/watch")||line.contains("youtu.be/"))
+			return line;
+		if ((title!=null)&&(title.trim().length()>0))
+			return title;
+		if (line.contains("://"))
+			return null;
+		//A file on disk, which is usually named after the song
+		int slash = Math.max(line.lastIndexOf('/'), line.lastIndexOf('\\'));
+		String name = line.substring(slash+1);
+		int dot = name.lastIndexOf('.');
+		if (dot>0)
+			name = name.substring(0, dot);
+		return name;
+	}
+
+	/**
+	 * 64 bit FNV-1a, spread out so the low bits can index a table
+	 */
+	static long fingerprint(String key){
+		long hash = 0xcbf29ce484222325L;
+		for(int i=0;i<key.length();i++){
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash>>>33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash>>>33;
+		return hash;
+	}
+
+	/**
+	 * An open addressing set of longs, 8 to 16 bytes a song instead of a String and a map entry
+	 */
+	private static class Fingerprints{
+		private long []table = new long[1024];
+		private int size = 0;
+
+		/**
+		 * @return false if it was already there
+		 */
+		boolean add(long fingerprint){
+			//0 marks an empty slot
+			if (fingerprint==0)
+				fingerprint = 1;
+			if (size*2>=table.length)
+				grow();
+			if (!put(table, fingerprint))
+				return false;
+			size++;
+			return true;
+		}
+
+		private static boolean put(long []table, long fingerprint){
+			int mask = table.length-1;
+			int i = (int)fingerprint&mask;
+			while (table[i]!=0){
+				if (table[i]==fingerprint)
+					return false;
+				i = (i+1)&mask;
+			}
+			table[i] = fingerprint;
+			return true;
+		}
+
+		private void grow(){
+			long []bigger = new long[table.length*2];
+			for(long fingerprint:table){
+				if (fingerprint!=0)
+					put(bigger, fingerprint);
+			}
+			table = bigger;
+		}
+	}
+}
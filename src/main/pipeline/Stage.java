@@ -0,0 +1,167 @@
+package main.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One step of the download pipeline. Tasks wait in a bounded queue and are run
+ * by at most "limit" worker threads at once (0=infinite).
+ */
+public class Stage {
+
+	private String name;
+	private BlockingQueue<Runnable> queue;
+	private ExecutorService workers;
+	private Thread dispatcher;
+	private final Object lock = new Object();
+	private int limit;
+	private int running = 0;
+	private volatile boolean stopped = false;
+	private AtomicLong completed = new AtomicLong();
+	private AtomicLong busyNanos = new AtomicLong();
+	
+	public Stage(final String name, int limit, int queueCapacity){
+		this.name = name;
+		this.limit = limit;
+		queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, name+"-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+	
+	/**
+	 * Queues a task, blocking while the queue is full.
+	 * @param task
+	 * @throws InterruptedException If the stage was stopped while waiting
+	 */
+	public void submit(Runnable task) throws InterruptedException{
+		if (stopped)
+			throw new InterruptedException(name+" stage stopped");
+		queue.put(task);
+	}
+	
+	/**
+	 * Takes tasks off the queue and hands them to a worker whenever the limit allows.
+	 */
+	private void dispatch(){
+		try {
+			while (!stopped){
+				final Runnable task = queue.take();
+				synchronized (lock) {
+					while ((limit!=0)&&(running>=limit)){
+						lock.wait();
+					}
+					running++;
+				}
+				try{
+					workers.execute(new Runnable() {
+						@Override
+						public void run() {
+							long start = System.nanoTime();
+							try{
+								task.run();
+							}finally{
+								busyNanos.addAndGet(System.nanoTime()-start);
+								completed.incrementAndGet();
+								synchronized (lock) {
+									running--;
+									lock.notifyAll();
+								}
+							}
+						}
+					});
+				}catch(RejectedExecutionException e){
+					//Stopped while handing off
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			//Stopped
+		}
+	}
+	
+	/**
+	 * Changes how many tasks may run at once. Running tasks are never interrupted.
+	 * @param limit 0=infinite
+	 */
+	public void setLimit(int limit){
+		synchronized (lock) {
+			this.limit = limit;
+			lock.notifyAll();
+		}
+	}
+	
+	public int getLimit(){
+		synchronized (lock) {
+			return limit;
+		}
+	}
+	
+	public int getRunning(){
+		synchronized (lock) {
+			return running;
+		}
+	}
+	
+	public int getQueued(){
+		return queue.size();
+	}
+	
+	public String getName(){
+		return name;
+	}
+	
+	/**
+	 * @return How many tasks have finished
+	 */
+	public long getCompleted(){
+		return completed.get();
+	}
+	
+	/**
+	 * @return The time all finished tasks took, not counting time spent queued
+	 */
+	public long getBusyNanos(){
+		return busyNanos.get();
+	}
+	
+	/**
+	 * @return Average seconds a task took, or 0 if none finished
+	 */
+	public double getAverageSeconds(){
+		long done = completed.get();
+		if (done==0)
+			return 0;
+		return busyNanos.get()/1e9/done;
+	}
+	
+	/**
+	 * Drops all queued tasks and interrupts running ones.
+	 */
+	public void stop(){
+		stopped = true;
+		dispatcher.interrupt();
+		queue.clear();
+		workers.shutdownNow();
+	}
+}
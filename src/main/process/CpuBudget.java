@@ -0,0 +1,116 @@
+package main.process;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+
+import main.Config;
+
+/**
+ * Works out how many cores this program may really use, so ffmpeg encoders can share them
+ * without fighting. Inside a container the cgroup CPU quota counts, not the cores the machine has.
+ *
+ * Settings in config.txt: cpu_cores, to override what is found
+ */
+public class CpuBudget {
+
+	private static int cores = 0;
+	private static Semaphore encoders;
+
+	/**
+	 * Gets how many cores may be used at once
+	 * @return at least 1
+	 */
+	public static synchronized int getCores(){
+		if (cores==0){
+			cores = Config.getInt("cpu_cores", 0);
+			if (cores<=0){
+				cores = Runtime.getRuntime().availableProcessors();
+				int quota = readCgroupQuota();
+				if ((quota>0)&&(quota<cores))
+					cores = quota;
+			}
+			cores = Math.max(1, cores);
+		}
+		return cores;
+	}
+
+	/**
+	 * Gets how many threads each of several processes may use so together they fit the cores
+	 * @param processes How many run at once
+	 * @return at least 1
+	 */
+	public static int getThreadsPerProcess(int processes){
+		return Math.max(1, getCores()/Math.max(1, processes));
+	}
+
+	/**
+	 * Turns a concurrency limit into one the cores can take
+	 * @param limit 0 for one per core
+	 * @return between 1 and getCores()
+	 */
+	public static int fitLimit(int limit){
+		if (limit<=0)
+			return getCores();
+		return Math.min(limit, getCores());
+	}
+
+	/**
+	 * Permits for every ffmpeg encoder, one per core. Transcodes take one per thread and
+	 * streaming downloads, which encode with one thread, take one, so both fit the same cores.
+	 * @return
+	 */
+	public static synchronized Semaphore getEncoders(){
+		if (encoders==null)
+			encoders = new Semaphore(getCores(), true);
+		return encoders;
+	}
+
+	/**
+	 * Reads the CPU quota from cgroup v2 (cpu.max) or v1 (cpu.cfs_quota_us), rounded up to whole cores
+	 * @return 0 if there is no quota or no cgroups, e.g. on Windows
+	 */
+	private static int readCgroupQuota(){
+		String max = readLine(new File("/sys/fs/cgroup/cpu.max"));
+		if (max!=null){
+			String []split = max.trim().split("\\s+");
+			if ((split.length==2)&&(!split[0].equals("max")))
+				return toCores(split[0], split[1]);
+			return 0;
+		}
+		String quota = readLine(new File("/sys/fs/cgroup/cpu/cpu.cfs_quota_us"));
+		String period = readLine(new File("/sys/fs/cgroup/cpu/cpu.cfs_period_us"));
+		if ((quota!=null)&&(period!=null))
+			return toCores(quota.trim(), period.trim());
+		return 0;
+	}
+
+	private static int toCores(String quota, String period){
+		try{
+			long q = Long.parseLong(quota);
+			long p = Long.parseLong(period);
+			if ((q<=0)||(p<=0))
+				return 0;
+			return (int)((q+p-1)/p);
+		}catch(NumberFormatException e){
+			return 0;
+		}
+	}
+
+	private static String readLine(File file){
+		if (!file.exists())
+			return null;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try{
+				return reader.readLine();
+			}finally{
+				reader.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
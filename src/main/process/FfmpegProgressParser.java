@@ -0,0 +1,57 @@
+package main.process;
+
+/**
+ * Parses ffmpeg's "size=     256kB time=00:00:16.12 bitrate= 130.1kbits/s speed=32.2x" lines.
+ * The percent and ETA come from the "Duration: 00:03:21.45" ffmpeg prints for its input, which
+ * is left in the log. Input read from a pipe has no duration, so only the size is known.
+ */
+public class FfmpegProgressParser extends ProgressParser {
+
+	public FfmpegProgressParser(IProgressListener listener){
+		super(listener);
+	}
+
+	@Override
+	public boolean parse(byte []line, int start, int end) {
+		pos = start;
+		skipSpaces(line, end);
+		if (skip(line, end, "Duration:")){
+			double duration = readTime(line, end);
+			if ((!Double.isNaN(duration))&&(progress.totalSeconds<0))
+				progress.totalSeconds = duration;
+			return false;
+		}
+		//Video has "frame=" first, audio starts with "size="
+		if ((!skip(line, end, "size="))&&(!skip(line, end, "frame=")))
+			return false;
+		pos = start;
+		if (skipTo(line, end, "size=")){
+			double size = readNumber(line, end);
+			if (!Double.isNaN(size))
+				progress.bytes = (long)(size*readUnit(line, end));
+		}
+		double speed = -1;
+		if (skipTo(line, end, "time=")){
+			double time = readTime(line, end);
+			if (!Double.isNaN(time))
+				progress.seconds = time;
+			if (skipTo(line, end, "speed=")){
+				double number = readNumber(line, end);
+				if (!Double.isNaN(number))
+					speed = number;
+			}
+		}
+		double total = progress.totalSeconds;
+		double done = progress.seconds;
+		if ((total>0)&&(done>=0)){
+			progress.percent = Math.min(100, done*100/total);
+			if (speed>0)
+				progress.etaSeconds = (long)(Math.max(0, total-done)/speed);
+		}
+		double elapsed = getElapsedSeconds();
+		if ((elapsed>0)&&(progress.bytes>=0))
+			progress.bytesPerSecond = progress.bytes/elapsed;
+		listener.progressChanged(progress);
+		return true;
+	}
+}
@@ -0,0 +1,6 @@
+package main.process;
+
+public interface IProcessListener {
+	public void processLine(SupervisedProcess proc, boolean error, String line);
+	public void processExited(SupervisedProcess proc, int exitCode);
+}
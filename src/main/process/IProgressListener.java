@@ -0,0 +1,9 @@
+package main.process;
+
+public interface IProgressListener {
+	/**
+	 * Called on the process' listener thread for every progress line. The progress is reused for the
+	 * next line, so copy it to keep it.
+	 */
+	public void progressChanged(Progress progress);
+}
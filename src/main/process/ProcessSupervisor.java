@@ -0,0 +1,110 @@
+package main.process;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the stdout and stderr of every child program with a small fixed set of threads.
+ * Each thread polls its share of the processes, reading only what is already waiting,
+ * so hundreds of running programs never need hundreds of reader threads and no program
+ * can stall on a full pipe. The same threads kill processes that pass their deadlines.
+ *
+ * Listeners are called on a separate pool, one thread per process at most, so one that blocks
+ * never stops the reading or the deadlines of the others.
+ */
+public class ProcessSupervisor {
+
+	private static final int NUM_THREADS = 2;
+	private static final int IDLE_SLEEP_MS = 20;
+	private static ProcessSupervisor thiz;
+	
+	private CopyOnWriteArrayList<SupervisedProcess> procs = new CopyOnWriteArrayList<SupervisedProcess>();
+	private AtomicInteger nextOwner = new AtomicInteger();
+	private ExecutorService listenerThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+		AtomicInteger count = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ProcessListener-"+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	public static synchronized ProcessSupervisor get(){
+		if (thiz==null)
+			thiz = new ProcessSupervisor();
+		return thiz;
+	}
+	
+	private ProcessSupervisor(){
+		for(int i=0;i<NUM_THREADS;i++){
+			final int index = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					pumpLoop(index);
+				}
+			}, "ProcessSupervisor-"+i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Starts a program and reads its stdout and stderr as lines.
+	 * @param args
+	 * @param listener Gets every line and then the exit code, in order on a listener thread
+	 * @return
+	 * @throws IOException If the program couldn't be started
+	 */
+	public SupervisedProcess start(String []args, IProcessListener listener) throws IOException{
+		return start(args, listener, true);
+	}
+	
+	/**
+	 * Starts a program and reads its stderr as lines.
+	 * @param args
+	 * @param listener Gets every line and then the exit code, in order on a listener thread
+	 * @param readStdout If false stdout is left for the caller to read with getOutput()
+	 * @return
+	 * @throws IOException If the program couldn't be started
+	 */
+	public SupervisedProcess start(String []args, IProcessListener listener, boolean readStdout) throws IOException{
+		Process process = new ProcessBuilder(args).start();
+		int owner = (nextOwner.getAndIncrement()&Integer.MAX_VALUE)%NUM_THREADS;
+		SupervisedProcess proc = new SupervisedProcess(process, listener, readStdout, owner, listenerThreads);
+		procs.add(proc);
+		return proc;
+	}
+	
+	private void pumpLoop(int index){
+		byte []buffer = new byte[8192];
+		while (true){
+			boolean read = false;
+			long now = System.nanoTime();
+			for(SupervisedProcess proc:procs){
+				if (proc.owner!=index)
+					continue;
+				try{
+					read |= proc.pump(buffer);
+					proc.checkDeadlines(now);
+				}catch(RuntimeException e){
+					e.printStackTrace();
+				}
+				if (proc.isDrained())
+					procs.remove(proc);
+			}
+			if (!read){
+				try {
+					Thread.sleep(IDLE_SLEEP_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+}
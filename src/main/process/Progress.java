@@ -0,0 +1,95 @@
+package main.process;
+
+/**
+ * How far a youtube-dl download or an ffmpeg conversion is. Filled in by a ProgressParser and
+ * read by other threads, so every field is volatile. Unknown values are -1.
+ */
+public class Progress {
+
+	public volatile double percent = -1;
+	/** Bytes downloaded or written so far */
+	public volatile long bytes = -1;
+	public volatile long totalBytes = -1;
+	public volatile double bytesPerSecond = -1;
+	public volatile long etaSeconds = -1;
+	/** How much of the song ffmpeg has converted, in seconds of audio */
+	public volatile double seconds = -1;
+	/** How long the song is, in seconds of audio */
+	public volatile double totalSeconds = -1;
+
+	/**
+	 * Copies another progress into this one, so a reused one can be kept without allocating
+	 * @param other
+	 */
+	public void set(Progress other){
+		percent = other.percent;
+		bytes = other.bytes;
+		totalBytes = other.totalBytes;
+		bytesPerSecond = other.bytesPerSecond;
+		etaSeconds = other.etaSeconds;
+		seconds = other.seconds;
+		totalSeconds = other.totalSeconds;
+	}
+
+	public void reset(){
+		percent = -1;
+		bytes = -1;
+		totalBytes = -1;
+		bytesPerSecond = -1;
+		etaSeconds = -1;
+		seconds = -1;
+		totalSeconds = -1;
+	}
+
+	/**
+	 * @return 0 to 1, or 0 if unknown
+	 */
+	public double getFraction(){
+		double p = percent;
+		if (p<0)
+			return 0;
+		return Math.min(100, p)/100;
+	}
+
+	/**
+	 * Formats seconds as m:ss or h:mm:ss
+	 * @param seconds
+	 * @return
+	 */
+	public static String formatTime(long seconds){
+		if (seconds>=3600)
+			return String.format("%d:%02d:%02d", seconds/3600, (seconds/60)%60, seconds%60);
+		return String.format("%d:%02d", seconds/60, seconds%60);
+	}
+
+	private static String formatBytes(double bytes){
+		return String.format("%.1f MB", bytes/(1024.0*1024.0));
+	}
+
+	/**
+	 * e.g. "45% of 3.5 MB at 1.2 MB/s, 0:02 left", or "3.5 MB at 1.2 MB/s" if only the size is known
+	 */
+	@Override
+	public String toString(){
+		double p = percent;
+		long done = bytes;
+		StringBuilder text = new StringBuilder();
+		if (p>=0){
+			text.append(String.format("%.0f%%", p));
+			long total = totalBytes;
+			if (total>0)
+				text.append(" of ").append(formatBytes(total));
+		}else if (done>=0){
+			text.append(formatBytes(done));
+		}else{
+			return "";
+		}
+		double rate = bytesPerSecond;
+		if (rate>0)
+			text.append(" at ").append(formatBytes(rate)).append("/s");
+		long eta = etaSeconds;
+		if ((eta>=0)&&(p>=0)&&(p<100))
+			text.append(", ").append(formatTime(eta)).append(" left");
+		return text.toString();
+	}
+}
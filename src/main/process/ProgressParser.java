@@ -0,0 +1,154 @@
+package main.process;
+
+/**
+ * Reads progress lines straight from a process' output bytes. Progress lines come several
+ * times a second from every running process, so they are parsed in place and never turned
+ * into Strings. Other lines are left alone and reach the IProcessListener as usual.
+ *
+ * Each process gets its own parser, only used by one of its listener threads at a time.
+ */
+public abstract class ProgressParser {
+
+	protected final Progress progress = new Progress();
+	protected final IProgressListener listener;
+	/** Where in the line parsing is up to */
+	protected int pos;
+	private final long startNanos = System.nanoTime();
+
+	public ProgressParser(IProgressListener listener){
+		this.listener = listener;
+	}
+
+	/**
+	 * @param line
+	 * @param start
+	 * @param end
+	 * @return true if the line was progress, and was sent to the listener instead of being logged
+	 */
+	public abstract boolean parse(byte []line, int start, int end);
+
+	/**
+	 * Checks the line continues with token at pos and if so moves past it
+	 */
+	protected boolean skip(byte []line, int end, String token){
+		int n = token.length();
+		if (pos+n>end)
+			return false;
+		for(int i=0;i<n;i++){
+			if (line[pos+i]!=token.charAt(i))
+				return false;
+		}
+		pos += n;
+		return true;
+	}
+
+	/**
+	 * Finds token at or after pos and moves past it
+	 * @return false, leaving pos where it was, if it isn't there
+	 */
+	protected boolean skipTo(byte []line, int end, String token){
+		int n = token.length();
+		outer:
+		for(int i=pos;i+n<=end;i++){
+			for(int j=0;j<n;j++){
+				if (line[i+j]!=token.charAt(j))
+					continue outer;
+			}
+			pos = i+n;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Skips spaces and the ~ youtube-dl puts before sizes it only estimated
+	 */
+	protected void skipSpaces(byte []line, int end){
+		while ((pos<end)&&((line[pos]==' ')||(line[pos]=='~')))
+			pos++;
+	}
+
+	/**
+	 * Reads a number like 12 or 3.52 at pos, after any spaces
+	 * @return NaN if there is no number
+	 */
+	protected double readNumber(byte []line, int end){
+		skipSpaces(line, end);
+		long whole = 0;
+		double fraction = 0;
+		double scale = 1;
+		boolean digits = false;
+		boolean dot = false;
+		while (pos<end){
+			byte c = line[pos];
+			if ((c>='0')&&(c<='9')){
+				digits = true;
+				if (dot){
+					scale /= 10;
+					fraction += (c-'0')*scale;
+				}else{
+					whole = whole*10+(c-'0');
+				}
+			}else if ((c=='.')&&(!dot)){
+				dot = true;
+			}else{
+				break;
+			}
+			pos++;
+		}
+		return digits ? whole+fraction : Double.NaN;
+	}
+
+	/**
+	 * Reads a size unit right after a number, e.g. KiB, MiB or kB. youtube-dl and ffmpeg both
+	 * count in 1024s.
+	 * @return What to multiply the number by to get bytes
+	 */
+	protected double readUnit(byte []line, int end){
+		if (pos>=end)
+			return 1;
+		double multiplier;
+		switch(line[pos]){
+		case 'k':
+		case 'K':
+			multiplier = 1024;
+			break;
+		case 'M':
+			multiplier = 1024*1024;
+			break;
+		case 'G':
+			multiplier = 1024*1024*1024;
+			break;
+		default:
+			multiplier = 1;
+		}
+		while ((pos<end)&&(((line[pos]>='a')&&(line[pos]<='z'))||((line[pos]>='A')&&(line[pos]<='Z'))))
+			pos++;
+		return multiplier;
+	}
+
+	/**
+	 * Reads a time like 00:02 or 01:02:03.45
+	 * @return Seconds, NaN if there is no time
+	 */
+	protected double readTime(byte []line, int end){
+		double time = readNumber(line, end);
+		if (Double.isNaN(time))
+			return time;
+		while ((pos<end)&&(line[pos]==':')){
+			pos++;
+			double part = readNumber(line, end);
+			if (Double.isNaN(part))
+				break;
+			time = time*60+part;
+		}
+		return time;
+	}
+
+	/**
+	 * @return Seconds since the parser was made, about when the process started
+	 */
+	protected double getElapsedSeconds(){
+		return (System.nanoTime()-startNanos)/1e9;
+	}
+}
@@ -0,0 +1,315 @@
+package main.process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A child process whose output is read by the ProcessSupervisor instead of by a thread of its own.
+ * It can be given deadlines, after which the supervisor kills it along with any programs it started.
+ *
+ * Lines, progress and the exit are handed to the listener in order on a listener thread, never on
+ * the supervisor's own threads, so a listener that waits on the disk or a full queue only holds up
+ * its own process.
+ */
+public class SupervisedProcess {
+
+	private Process process;
+	private IProcessListener listener;
+	private InputStream stdout;
+	private InputStream stderr;
+	private LineBuffer stdoutLine = new LineBuffer();
+	private LineBuffer stderrLine = new LineBuffer();
+	private volatile ProgressParser parser;
+	private CompletableFuture<Integer> exit = new CompletableFuture<Integer>();
+	private volatile boolean drained = false;
+	private Executor listenerThreads;
+	private ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+	private AtomicBoolean dispatching = new AtomicBoolean(false);
+	/** The supervisor thread that reads this process */
+	final int owner;
+	private final long startNanos = System.nanoTime();
+	private volatile long lastActivityNanos = startNanos;
+	private volatile long idleNanos = 0;
+	private volatile long maxNanos = 0;
+	private volatile String timeout;
+	
+	SupervisedProcess(Process process, IProcessListener listener, boolean readStdout, int owner, Executor listenerThreads){
+		this.process = process;
+		this.owner = owner;
+		this.listener = listener;
+		this.listenerThreads = listenerThreads;
+		this.stdout = readStdout ? process.getInputStream() : null;
+		this.stderr = process.getErrorStream();
+	}
+	
+	/**
+	 * Reads whatever output is waiting without blocking and queues complete lines for the listener.
+	 * @param buffer Scratch space owned by the calling supervisor thread
+	 * @return true if anything was read
+	 */
+	boolean pump(byte []buffer){
+		if (drained)
+			return false;
+		boolean alive = process.isAlive();
+		boolean read = drain(stdout, stdoutLine, false, buffer);
+		read |= drain(stderr, stderrLine, true, buffer);
+		if (read)
+			lastActivityNanos = System.nanoTime();
+		if (!alive && !read){
+			final int exitCode = process.exitValue();
+			flush(stdoutLine, false);
+			flush(stderrLine, true);
+			drained = true;
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					try{
+						if (listener!=null)
+							listener.processExited(SupervisedProcess.this, exitCode);
+					}finally{
+						exit.complete(exitCode);
+					}
+				}
+			});
+		}
+		return read;
+	}
+	
+	/**
+	 * Whether all the output was read and the exit queued for the listener, so the supervisor can drop it
+	 * @return
+	 */
+	boolean isDrained(){
+		return drained;
+	}
+	
+	private boolean drain(InputStream stream, LineBuffer line, boolean error, byte []buffer){
+		if (stream==null)
+			return false;
+		boolean read = false;
+		try {
+			int available;
+			while ((available=stream.available())>0){
+				int n = stream.read(buffer, 0, Math.min(available, buffer.length));
+				if (n<=0)
+					break;
+				read = true;
+				for(int i=0;i<n;i++){
+					byte b = buffer[i];
+					if ((b=='\n')||(b=='\r')){
+						flush(line, error);
+					}else{
+						line.add(b);
+					}
+				}
+			}
+		} catch (IOException e) {
+			//Stream closed, the exit check will finish the process
+		}
+		return read;
+	}
+	
+	private void flush(LineBuffer line, final boolean error){
+		if (line.size()==0)
+			return;
+		final byte []bytes = line.toByteArray();
+		line.reset();
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				ProgressParser p = parser;
+				if ((p!=null)&&(p.parse(bytes, 0, bytes.length)))
+					return;
+				if (listener!=null)
+					listener.processLine(SupervisedProcess.this, error, new String(bytes));
+			}
+		});
+	}
+	
+	/**
+	 * Queues an event for the listener. Only one listener thread runs a process' events at a
+	 * time, so they arrive in order.
+	 */
+	private void dispatch(Runnable event){
+		events.add(event);
+		if (dispatching.compareAndSet(false, true))
+			listenerThreads.execute(runEvents);
+	}
+	
+	private Runnable runEvents = new Runnable() {
+		@Override
+		public void run() {
+			while (true){
+				Runnable event;
+				while ((event=events.poll())!=null){
+					try{
+						event.run();
+					}catch(RuntimeException e){
+						e.printStackTrace();
+					}
+				}
+				dispatching.set(false);
+				//An event queued after the poll above but before the flag was cleared
+				if (events.isEmpty()||(!dispatching.compareAndSet(false, true)))
+					return;
+			}
+		}
+	};
+	
+	/**
+	 * Sends progress lines to a parser instead of the listener. It is called on the listener thread.
+	 * @param parser
+	 */
+	public void setProgressParser(ProgressParser parser){
+		this.parser = parser;
+	}
+	
+	/**
+	 * Sets when the supervisor gives up on the process. youtube-dl and ffmpeg print progress
+	 * every second or so, so a long silence means it hung, e.g. on a stalled connection.
+	 * @param idleMillis How long it may go without printing anything, 0 for no limit
+	 * @param maxMillis How long it may run in all, 0 for no limit
+	 */
+	public void setDeadlines(long idleMillis, long maxMillis){
+		idleNanos = idleMillis*1000000L;
+		maxNanos = maxMillis*1000000L;
+	}
+	
+	/**
+	 * Counts as output for the idle deadline. For stdout read by the caller, which the supervisor doesn't see.
+	 */
+	public void touch(){
+		lastActivityNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Kills the process if it is past a deadline
+	 * @param now System.nanoTime()
+	 * @return true if it was killed
+	 */
+	boolean checkDeadlines(long now){
+		if ((timeout!=null)||exit.isDone())
+			return false;
+		long idle = idleNanos;
+		long max = maxNanos;
+		if ((idle>0)&&(now-lastActivityNanos>idle)){
+			timeout = "printed nothing for "+idle/1000000000L+"s";
+		}else if ((max>0)&&(now-startNanos>max)){
+			timeout = "ran longer than "+max/60000000000L+" min";
+		}else{
+			return false;
+		}
+		kill(true);
+		return true;
+	}
+	
+	/**
+	 * Says why the supervisor killed the process
+	 * @return null if it didn't
+	 */
+	public String getTimeout(){
+		return timeout;
+	}
+	
+	/**
+	 * Completes with the exit code once the process has exited and all its output was read
+	 * @return
+	 */
+	public Future<Integer> getExit(){
+		return exit;
+	}
+	
+	/**
+	 * Blocks until the process exits and all its output was read
+	 * @return The exit code
+	 * @throws InterruptedException
+	 */
+	public int waitFor() throws InterruptedException{
+		try {
+			return exit.get();
+		} catch (ExecutionException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * The process' stdout. Only for processes started without line reading, like a video
+	 * written to stdout.
+	 * @return
+	 */
+	public InputStream getOutput(){
+		return process.getInputStream();
+	}
+	
+	public OutputStream getInput(){
+		return process.getOutputStream();
+	}
+	
+	/**
+	 * Stops the process and every program it started. youtube-dl.exe is a launcher that runs
+	 * the real youtube-dl as its child, which would keep downloading if only the launcher was stopped.
+	 */
+	public void destroy(){
+		kill(false);
+	}
+	
+	/**
+	 * Stops the process tree. The children are found with Java 9's ProcessHandle, looked up
+	 * by reflection since this is built for Java 8. On Java 8 only the process itself is stopped.
+	 * @param forcibly Kill instead of asking the programs to quit
+	 */
+	private void kill(boolean forcibly){
+		Object []children = null;
+		Method destroyChild = null;
+		try {
+			Object descendants = Process.class.getMethod("descendants").invoke(process);
+			children = ((java.util.stream.Stream<?>)descendants).toArray();
+			destroyChild = Class.forName("java.lang.ProcessHandle").getMethod(forcibly ? "destroyForcibly" : "destroy");
+		} catch (Exception e) {
+			//Java 8
+		}
+		if (forcibly){
+			process.destroyForcibly();
+		}else{
+			process.destroy();
+		}
+		if (children==null)
+			return;
+		for(Object child:children){
+			try {
+				destroyChild.invoke(child);
+			} catch (Exception e) {
+				//Already gone
+			}
+		}
+	}
+	
+	/**
+	 * A line being read
+	 */
+	private static class LineBuffer extends ByteArrayOutputStream{
+		
+		LineBuffer(){
+			super(256);
+		}
+		
+		/**
+		 * Adds a byte without ByteArrayOutputStream's lock, which every byte of output would take
+		 */
+		void add(byte b){
+			if (count==buf.length)
+				buf = Arrays.copyOf(buf, count*2);
+			buf[count++] = b;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package main.process;
+
+/**
+ * Parses youtube-dl's "[download]  45.3% of 3.52MiB at  1.23MiB/s ETA 00:02" lines
+ */
+public class YoutubeDlProgressParser extends ProgressParser {
+
+	public YoutubeDlProgressParser(IProgressListener listener){
+		super(listener);
+	}
+
+	@Override
+	public boolean parse(byte []line, int start, int end) {
+		pos = start;
+		if (!skip(line, end, "[download]"))
+			return false;
+		double percent = readNumber(line, end);
+		//e.g. "[download] Destination: ..."
+		if (Double.isNaN(percent)||(pos>=end)||(line[pos]!='%'))
+			return false;
+		pos++;
+		progress.percent = percent;
+		if (skipTo(line, end, " of ")){
+			double size = readNumber(line, end);
+			if (!Double.isNaN(size)){
+				progress.totalBytes = (long)(size*readUnit(line, end));
+				progress.bytes = (long)(progress.totalBytes*percent/100);
+			}
+		}
+		double rate = -1;
+		if (skipTo(line, end, " at ")){
+			//"Unknown speed" has no number
+			double number = readNumber(line, end);
+			if (!Double.isNaN(number))
+				rate = number*readUnit(line, end);
+		}
+		progress.bytesPerSecond = rate;
+		long eta = (percent>=100) ? 0 : -1;
+		if (skipTo(line, end, "ETA ")){
+			double time = readTime(line, end);
+			if (!Double.isNaN(time))
+				eta = (long)time;
+		}
+		progress.etaSeconds = eta;
+		listener.progressChanged(progress);
+		return true;
+	}
+}
@@ -5,18 +5,20 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
 
-import javax.swing.BoxLayout;
 import javax.swing.JCheckBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
-import javax.swing.JScrollPane;
+import javax.swing.JProgressBar;
 import javax.swing.JTextField;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
 import main.SongDownloader;
+import main.pipeline.BatchResult;
+import main.pipeline.JobScheduler;
+import main.pipeline.PipelineSettings;
+import main.process.CpuBudget;
 
 import common.StringOps;
 import common.SwingOps;
@@ -24,22 +26,31 @@ import common.SwingOps;
 public class AllSongsPanel extends JPanel{
 
 	private static final long serialVersionUID = 1L;
-	ArrayList<SongController> conts;
-	JPanel mainPanel;
+	SongTablePanel songTable;
+	JProgressBar batchBar;
 	JCheckBox keepArtistCheckBox;
 	JCheckBox keepVideoCheckBox;
+	JCheckBox streamCheckBox;
+	JCheckBox audioOnlyCheckBox;
+	JCheckBox keepAudioFormatCheckBox;
+	JTextField searchThreadField;
+	JTextField searchAheadField;
 	JTextField threadField;
+	JCheckBox autoThreadCheckBox;
+	JLabel threadNowLabel;
+	JTextField convertThreadField;
+	JTextField batchSizeField;
 	JPanel opPanel;
 	SongController cont;
-	String threadFieldText = "5";
+	SongPanel contPanel;
 	
 	public AllSongsPanel(){
 		super(new BorderLayout());
-		mainPanel = new JPanel();
-		mainPanel.setLayout(new BoxLayout(mainPanel,BoxLayout.Y_AXIS));
-		JScrollPane scrollPane = new JScrollPane(mainPanel);
+		songTable = new SongTablePanel();
+		batchBar = new JProgressBar();
+		batchBar.setStringPainted(true);
+		batchBar.setString("");
 		
-		conts = new ArrayList<SongController>();
 		opPanel = new JPanel(new FlowLayout());
 		Song mainSong = new Song(){
 			@Override
@@ -54,7 +65,8 @@ public class AllSongsPanel extends JPanel{
 			}
 		};
 		mainSong.addSongUpdateListener(cont);
-		opPanel.add(cont.getSongPanel());
+		contPanel = new SongPanel(cont, true);
+		opPanel.add(contPanel);
 		keepArtistCheckBox = new JCheckBox("Keep Artist in Title");
 		keepArtistCheckBox.setSelected(true);
 		keepArtistCheckBox.addActionListener(new ActionListener(){
@@ -71,41 +83,89 @@ public class AllSongsPanel extends JPanel{
 				keepVideos();
 			}
 		});
-		JLabel threadLabel = new JLabel("Thread (0=infinite)");
-		threadField = new JTextField(threadFieldText);
-		threadField.setPreferredSize(new Dimension(30, 20));
-		threadField.getDocument().addDocumentListener(new DocumentListener() {
+		streamCheckBox = new JCheckBox("Stream (no video file)");
+		streamCheckBox.setToolTipText("Convert while downloading. Ignored when keeping videos.");
+		streamCheckBox.addActionListener(new ActionListener(){
 			@Override
-			public void removeUpdate(DocumentEvent e) {
-				updateNumThreads();
+			public void actionPerformed(ActionEvent e) {
+				streamVideos();
 			}
-			
+		});
+		audioOnlyCheckBox = new JCheckBox("Audio Only");
+		audioOnlyCheckBox.setToolTipText("Download just the audio when youtube has it. Ignored when keeping videos.");
+		audioOnlyCheckBox.setSelected(true);
+		audioOnlyCheckBox.addActionListener(new ActionListener(){
 			@Override
-			public void insertUpdate(DocumentEvent e) {
-				updateNumThreads();
+			public void actionPerformed(ActionEvent e) {
+				audioOnly();
 			}
-			
+		});
+		keepAudioFormatCheckBox = new JCheckBox("Keep M4A/Opus");
+		keepAudioFormatCheckBox.setToolTipText("Save AAC and Opus audio as is instead of converting it to MP3");
+		keepAudioFormatCheckBox.addActionListener(new ActionListener(){
 			@Override
-			public void changedUpdate(DocumentEvent e) {
-				updateNumThreads();
+			public void actionPerformed(ActionEvent e) {
+				keepAudioFormat();
 			}
 		});
+		JLabel searchThreadLabel = new JLabel("Search Threads");
+		searchThreadField = createStageField(JobScheduler.RESOLVE, "8");
+		JLabel searchAheadLabel = new JLabel("Search Ahead");
+		searchAheadField = new JTextField("20");
+		searchAheadField.setPreferredSize(new Dimension(30, 20));
+		JLabel threadLabel = new JLabel("Download Threads (0=infinite)");
+		threadField = createStageField(JobScheduler.DOWNLOAD, "20");
+		autoThreadCheckBox = new JCheckBox("Auto");
+		autoThreadCheckBox.setToolTipText("Find the best number of downloads while running, up to Download Threads. Read when a batch starts.");
+		autoThreadCheckBox.setSelected(true);
+		threadNowLabel = new JLabel("");
+		JLabel convertThreadLabel = new JLabel("Convert Threads (0=per core)");
+		convertThreadField = createStageField(JobScheduler.TRANSCODE, ""+CpuBudget.getCores());
+		convertThreadField.setToolTipText("At most "+CpuBudget.getCores()+", the cores this program may use");
+		JLabel batchSizeLabel = new JLabel("Songs per youtube-dl");
+		batchSizeField = new JTextField("1");
+		batchSizeField.setPreferredSize(new Dimension(30, 20));
 		opPanel.add(keepArtistCheckBox);
 		opPanel.add(keepVideoCheckBox);
+		opPanel.add(streamCheckBox);
+		opPanel.add(audioOnlyCheckBox);
+		opPanel.add(keepAudioFormatCheckBox);
+		opPanel.add(searchThreadLabel);
+		opPanel.add(searchThreadField);
+		opPanel.add(searchAheadLabel);
+		opPanel.add(searchAheadField);
 		opPanel.add(threadLabel);
 		opPanel.add(threadField);
-		SwingOps.addHotkey(cont.getSongPanel(), "control E", cont.getSongPanel(),"edit");
+		opPanel.add(autoThreadCheckBox);
+		opPanel.add(threadNowLabel);
+		opPanel.add(convertThreadLabel);
+		opPanel.add(convertThreadField);
+		opPanel.add(batchSizeLabel);
+		opPanel.add(batchSizeField);
+		SwingOps.addHotkey(contPanel, "control E", contPanel,"edit");
 		
 		this.add(opPanel,BorderLayout.NORTH);
-		this.add(scrollPane,BorderLayout.CENTER);
+		this.add(songTable,BorderLayout.CENTER);
+		this.add(batchBar,BorderLayout.SOUTH);
 	}
 	
 	public void updateAllSongs(){
-		for(SongController c:conts){
-			updateSong(c.getSong());
+		for(SongController c:songTable.getControllers()){
+			//Songs still being searched for get the edits in songResolved()
+			if (c.getSong()!=null)
+				updateSong(c.getSong());
 		}
 	} 
 	
+	/**
+	 * Applies the "Edit All Songs" fields and "Keep Artist in Title" to a song that was just found
+	 * @param c
+	 */
+	public void songResolved(SongController c){
+		if (c.getSong()!=null)
+			updateSong(c.getSong());
+	}
+	
 	public void updateSong(Song song){
 		String songPrefix = "";
 		Song mainSong = cont.getSong();
@@ -147,49 +207,168 @@ public class AllSongsPanel extends JPanel{
 	}
 	
 	public void addSongController(SongController cont){
-		if ((cont==null)||(cont.getSongPanel()==null))
+		if (cont==null)
 			return;
-		conts.add(cont);
-		mainPanel.add(cont.getSongPanel());
-		repaint();
-		validate();
+		cont.setKeepVideo(keepVideoCheckBox.isSelected());
+		cont.setStreaming(streamCheckBox.isSelected());
+		cont.setAudioOnly(audioOnlyCheckBox.isSelected());
+		cont.setKeepAudioFormat(keepAudioFormatCheckBox.isSelected());
+		songTable.add(cont);
 	}
 	
 	public void clear(){
-		mainPanel.removeAll();
-		for(int i=0;i<conts.size();i++){
-			conts.remove(i);
-		}
+		songTable.clear();
 	}
 	
 	public void cancelAll(){
-		for(SongController c:conts){
+		for(SongController c:songTable.getControllers()){
 			c.cancel();
 		}
 	}
 	
 	public void keepVideos(){
-		for(SongController c:conts){
+		for(SongController c:songTable.getControllers()){
 			c.setKeepVideo(keepVideoCheckBox.isSelected());
 		}
 	}
 	
-	public int getNumThread(){
-		return Integer.parseInt(threadField.getText());
+	public void streamVideos(){
+		for(SongController c:songTable.getControllers()){
+			c.setStreaming(streamCheckBox.isSelected());
+		}
+	}
+	
+	public void audioOnly(){
+		for(SongController c:songTable.getControllers()){
+			c.setAudioOnly(audioOnlyCheckBox.isSelected());
+		}
+	}
+	
+	public void keepAudioFormat(){
+		for(SongController c:songTable.getControllers()){
+			c.setKeepAudioFormat(keepAudioFormatCheckBox.isSelected());
+		}
 	}
 	
-	public void updateNumThreads(){
+	/**
+	 * Creates a text field that changes a pipeline stage's thread limit as it is typed in.
+	 * @param stage One of the JobScheduler stage names
+	 * @param text The starting limit
+	 * @return
+	 */
+	private JTextField createStageField(final String stage, String text){
+		final JTextField field = new JTextField(text);
+		field.setPreferredSize(new Dimension(30, 20));
+		field.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				updateStageLimit(stage, field);
+			}
+			
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				updateStageLimit(stage, field);
+			}
+			
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+				updateStageLimit(stage, field);
+			}
+		});
+		return field;
+	}
+	
+	/**
+	 * Gets how many songs a stage may work on at once
+	 * @param stage One of the JobScheduler stage names
+	 * @return 0=infinite
+	 */
+	public int getStageLimit(String stage){
+		if (JobScheduler.DOWNLOAD.equals(stage))
+			return parseLimit(threadField, 20);
+		if (JobScheduler.TRANSCODE.equals(stage))
+			return parseLimit(convertThreadField, CpuBudget.getCores());
+		if (JobScheduler.RESOLVE.equals(stage))
+			return parseLimit(searchThreadField, 8);
+		return 1;
+	}
+	
+	/**
+	 * Gets how many found songs may wait for a download slot, so searching runs ahead of downloading.
+	 * Only read when a batch starts.
+	 * @return
+	 */
+	public int getResolveAhead(){
+		return Math.max(1, parseLimit(searchAheadField, 20));
+	}
+	
+	/**
+	 * Gets how many songs one youtube-dl process downloads. Only read when a batch starts.
+	 * @return 1 if every song gets its own process
+	 */
+	public int getBatchSize(){
+		return Math.max(1, parseLimit(batchSizeField, 1));
+	}
+	
+	/**
+	 * Gets the settings for a new batch from the fields on this panel
+	 * @return
+	 */
+	public PipelineSettings getSettings(){
+		PipelineSettings settings = new PipelineSettings();
+		settings.resolveLimit = getStageLimit(JobScheduler.RESOLVE);
+		settings.resolveAhead = getResolveAhead();
+		settings.downloadLimit = getStageLimit(JobScheduler.DOWNLOAD);
+		settings.transcodeLimit = getStageLimit(JobScheduler.TRANSCODE);
+		settings.tagLimit = getStageLimit(JobScheduler.TAG);
+		settings.batchSize = getBatchSize();
+		settings.autoDownloadLimit = autoThreadCheckBox.isSelected();
+		settings.keepVideo = keepVideoCheckBox.isSelected();
+		settings.streaming = streamCheckBox.isSelected();
+		settings.audioOnly = audioOnlyCheckBox.isSelected();
+		settings.keepAudioFormat = keepAudioFormatCheckBox.isSelected();
+		return settings;
+	}
+	
+	/**
+	 * Shows the limit a stage is running with right now. Only the download limit is shown.
+	 * @param stage
+	 * @param limit
+	 */
+	public void showStageLimit(String stage, int limit){
+		if (JobScheduler.DOWNLOAD.equals(stage))
+			threadNowLabel.setText("now "+limit);
+	}
+	
+	/**
+	 * Shows how far the batch is and about how long it has left
+	 * @param result
+	 */
+	public void showProgress(BatchResult result){
+		batchBar.setMaximum(Math.max(1, result.total));
+		batchBar.setValue(result.total-result.getUnfinished());
+		batchBar.setString(result.toString());
+	}
+	
+	private int parseLimit(JTextField field, int defaultLimit){
+		try{
+			int limit = Integer.parseInt(field.getText());
+			if (limit>=0)
+				return limit;
+		}catch(Exception e){
+		}
+		return defaultLimit;
+	}
+	
+	public void updateStageLimit(String stage, JTextField field){
 		int numThreads=-1;
 		try{
-			numThreads=Integer.parseInt(threadField.getText());
+			numThreads=Integer.parseInt(field.getText());
 		}catch(Exception e){
 			return;
 		}
 		if (numThreads>=0){
-			threadFieldText = threadField.getText();
-			SongDownloader.thiz.updateNumThreads(numThreads);
-		}else{
-			
+			SongDownloader.thiz.updateStageLimit(stage, numThreads);
 		}
 	}
 }
@@ -0,0 +1,378 @@
+package main.song;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import main.process.IProcessListener;
+import main.process.IProgressListener;
+import main.process.ProcessSupervisor;
+import main.process.Progress;
+import main.process.SupervisedProcess;
+import main.process.YoutubeDlProgressParser;
+import main.web.RateLimiter;
+
+/**
+ * Downloads several songs with one youtube-dl process by handing it a batch file of links,
+ * so the interpreter start is paid once per batch instead of once per song.
+ * youtube-dl announces each video with a "[youtube] id:" line, which is used to send the
+ * following output to the right song and to tell when the previous one finished.
+ * Videos go into the MediaStore. Songs whose video is already there are finished right away,
+ * and songs sharing a video with another song wait for it instead of downloading it again.
+ * Each video is claimed in the store before it goes in a batch file, like MediaStore.once()
+ * does for single downloads, so another batch, a single download or another machine never
+ * writes the same file at the same time. A video claimed elsewhere is left for a later run,
+ * by which time it is usually in the store.
+ *
+ * youtube-dl's output arrives on a ProcessSupervisor listener thread, and anything that waits
+ * there holds up the rest of the batch's output, so songs it gets past are only noted there. The thread in run() hands them on to the listener, which
+ * may wait for room in the next stage.
+ */
+public class BatchDownload implements IProcessListener, IProgressListener{
+
+	private static final Pattern VIDEO_LINE = Pattern.compile("^\\[youtube\\] ([\\w-]+):");
+	
+	private List<SongController> conts;
+	private MediaStore store = MediaStore.get();
+	private volatile HashMap<String, SongController> contsById;
+	private ArrayList<SongController> finished;
+	private IBatchDownloadListener listener;
+	private SupervisedProcess youtubeProc;
+	private SongController current;
+	private volatile boolean currentDownloaded;
+	private volatile boolean restart;
+	private volatile boolean audioOnly;
+	private volatile String timeout;
+	/** Songs youtube-dl got past, waiting to be handed to the listener */
+	private LinkedBlockingQueue<Finished> handoff = new LinkedBlockingQueue<Finished>();
+	private static final long HANDOFF_POLL_MS = 250;
+	/** How often to look again for videos being downloaded elsewhere */
+	private static final long HELD_BACK_POLL_MS = 1000;
+	
+	private static class Finished{
+		final SongController cont;
+		final boolean downloaded;
+		
+		Finished(SongController cont, boolean downloaded){
+			this.cont = cont;
+			this.downloaded = downloaded;
+		}
+	}
+	
+	public BatchDownload(List<SongController> conts, IBatchDownloadListener listener){
+		this.conts = conts;
+		this.listener = listener;
+		finished = new ArrayList<SongController>();
+		contsById = new HashMap<String, SongController>();
+		for(SongController c:conts){
+			c.setBatch(this);
+		}
+	}
+	
+	/**
+	 * Downloads all songs, telling the listener as each one finishes. Blocks until done.
+	 * If a song is cancelled youtube-dl is restarted with the songs that are left.
+	 * Songs sharing a video with one in the current run, or whose video is being downloaded
+	 * elsewhere, wait for a later run, by which time the video is in the store.
+	 */
+	public void run(){
+		HashSet<SongController> toldWaiting = new HashSet<SongController>();
+		while (true){
+			ArrayList<SongController> remaining = new ArrayList<SongController>();
+			HashMap<String, SongController> byId = new HashMap<String, SongController>();
+			ArrayList<SongController> stored = new ArrayList<SongController>();
+			ArrayList<SongController> cancelled = new ArrayList<SongController>();
+			synchronized (this) {
+				for(SongController c:conts){
+					if (finished.contains(c))
+						continue;
+					if (c.isCancelled()){
+						cancelled.add(c);
+					}else if ((store.findSource(c.getVideoId(), c.wantsAudioOnly())!=null)||(c.findConverted(store)!=null)){
+						stored.add(c);
+					}else if (!byId.containsKey(c.getVideoId())){
+						byId.put(c.getVideoId(), c);
+						remaining.add(c);
+					}
+				}
+			}
+			for(SongController c:cancelled){
+				finish(c, false);
+			}
+			for(SongController c:stored){
+				c.log("Already downloaded");
+				finish(c, true);
+			}
+			//One process gets one format, so the whole video unless every song only wants audio
+			boolean audioOnly = true;
+			for(SongController c:remaining){
+				audioOnly &= c.wantsAudioOnly();
+			}
+			ArrayList<String> claimed = new ArrayList<String>();
+			boolean heldBack = false;
+			Iterator<SongController> it = remaining.iterator();
+			while (it.hasNext()){
+				SongController c = it.next();
+				String key = getStoreKey(c, audioOnly);
+				boolean claim;
+				try {
+					claim = store.tryClaim(key);
+				} catch (IOException e) {
+					it.remove();
+					byId.remove(c.getVideoId());
+					c.lockFailed(e);
+					finish(c, false);
+					continue;
+				}
+				if (claim){
+					claimed.add(key);
+				}else{
+					it.remove();
+					byId.remove(c.getVideoId());
+					heldBack = true;
+					if (toldWaiting.add(c))
+						c.log("Waiting for another download of this video");
+				}
+			}
+			if (remaining.isEmpty()){
+				if (heldBack){
+					try {
+						Thread.sleep(HELD_BACK_POLL_MS);
+					} catch (InterruptedException e) {
+						giveUp("Batch stopped while waiting for another download of this video");
+						return;
+					}
+					continue;
+				}
+				if (stored.isEmpty()&&cancelled.isEmpty())
+					break;
+				continue;
+			}
+			contsById = byId;
+			boolean restart;
+			try{
+				restart = download(remaining, audioOnly);
+			}finally{
+				for(int i=0;i<claimed.size();i++){
+					String id = remaining.get(i).getVideoId();
+					store.release(claimed.get(i), store.findSource(id, audioOnly)!=null);
+				}
+			}
+			if (!restart){
+				for(SongController c:remaining){
+					if (!finished.contains(c)){
+						if (timeout!=null){
+							c.hung("youtube-dl "+timeout+" before this video, stopped it");
+						}else{
+							c.log("youtube-dl skipped this video");
+						}
+						finish(c, false);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The MediaStore.once() key a single download of the song's video would use
+	 */
+	private static String getStoreKey(SongController c, boolean audioOnly){
+		return c.getVideoId()+(audioOnly ? ".audio" : ".source");
+	}
+	
+	/**
+	 * Ends every song that hasn't finished, e.g. when the batch is interrupted
+	 * @param reason Logged to the songs that weren't cancelled
+	 */
+	private void giveUp(String reason){
+		ArrayList<SongController> left = new ArrayList<SongController>();
+		synchronized (this) {
+			for(SongController c:conts){
+				if (!finished.contains(c))
+					left.add(c);
+			}
+		}
+		for(SongController c:left){
+			if (!c.isCancelled())
+				c.log(reason);
+			finish(c, false);
+		}
+	}
+	
+	/**
+	 * Runs one youtube-dl process over the songs.
+	 * @param remaining
+	 * @param audioOnly
+	 * @return true if the process was stopped because a song was cancelled or hung
+	 */
+	private boolean download(List<SongController> remaining, boolean audioOnly){
+		File batchFile = null;
+		restart = false;
+		timeout = null;
+		this.audioOnly = audioOnly;
+		String []args = audioOnly
+				? new String[]{SongController.YOUTUBE_DL,"-c","-i","-f",SongController.AUDIO_FORMAT,"-o",store.getSourceTemplate(true),"-a",null}
+				: new String[]{SongController.YOUTUBE_DL,"-c","-i","-o",store.getSourceTemplate(false),"-a",null};
+		try {
+			batchFile = File.createTempFile("songs", ".txt");
+			BufferedWriter writer = new BufferedWriter(new FileWriter(batchFile));
+			for(SongController c:remaining){
+				writer.write(c.getSong().url+"\n");
+				c.log("DLing video (batch of "+remaining.size()+")");
+			}
+			writer.close();
+			if (!RateLimiter.get().acquire()){
+				//Only fails when interrupted, so the batch is being stopped
+				batchFile.delete();
+				giveUp("Batch stopped while waiting for its turn to download");
+				return false;
+			}
+			synchronized (this) {
+				args[args.length-1] = batchFile.getAbsolutePath();
+				youtubeProc = ProcessSupervisor.get().start(args, this);
+				//Each video gets the full time, since they download one after another
+				youtubeProc.setDeadlines(SongController.DOWNLOAD_IDLE_MS, SongController.DOWNLOAD_MAX_MS*remaining.size());
+				youtubeProc.setProgressParser(new YoutubeDlProgressParser(this));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			remaining.get(0).missingProgram(SongController.YOUTUBE_DL);
+			if (batchFile!=null)
+				batchFile.delete();
+			return false;
+		}
+		try {
+			while (!youtubeProc.getExit().isDone()){
+				Finished f = handoff.poll(HANDOFF_POLL_MS, TimeUnit.MILLISECONDS);
+				if (f!=null)
+					finish(f.cont, f.downloaded);
+			}
+		} catch (InterruptedException e) {
+			youtubeProc.destroy();
+		}
+		timeout = youtubeProc.getTimeout();
+		synchronized (this) {
+			if ((current!=null)&&(current.isCancelled()))
+				restart = true;
+			if ((current!=null)&&(timeout!=null)){
+				//Only the video it hung on is given up on, the rest go to a new youtube-dl
+				current.hung("youtube-dl "+timeout+", stopped it");
+				restart = true;
+			}
+		}
+		finishCurrent();
+		Finished f;
+		while ((f=handoff.poll())!=null){
+			finish(f.cont, f.downloaded);
+		}
+		batchFile.delete();
+		return restart;
+	}
+	
+	@Override
+	public void processLine(SupervisedProcess proc, boolean error, String line) {
+		if (restart)
+			return;
+		Matcher matcher = VIDEO_LINE.matcher(line);
+		if (matcher.find()){
+			SongController next = contsById.get(matcher.group(1));
+			if ((next!=null)&&(next!=current)){
+				finishCurrent();
+				synchronized (this) {
+					current = next;
+					currentDownloaded = false;
+				}
+				if (next.isCancelled()){
+					restart = true;
+					proc.destroy();
+					return;
+				}
+			}
+		}
+		if (current==null)
+			return;
+		current.checkThrottled(line);
+		current.log(line);
+		if (line.contains("[download] 100%")||line.contains("has already been downloaded")){
+			currentDownloaded = true;
+		}
+		if ((line.contains ("[youtube:channel]")) || (line.contains("Downloading video #"))){
+			current.badVideo();
+			currentDownloaded = false;
+			restart = true;
+			proc.destroy();
+		}
+	}
+	
+	@Override
+	public void processExited(SupervisedProcess proc, int exitCode) {
+	}
+	
+	/**
+	 * Progress lines don't reach processLine(), so this is where a finished video is noticed
+	 */
+	@Override
+	public void progressChanged(Progress progress) {
+		SongController c = current;
+		if (c==null)
+			return;
+		c.updateProgress(progress);
+		if (progress.percent>=100)
+			currentDownloaded = true;
+	}
+	
+	/**
+	 * Notes the song youtube-dl was on as finished. Doesn't block, so it doesn't hold up the
+	 * output behind it.
+	 */
+	private void finishCurrent(){
+		SongController c;
+		boolean downloaded;
+		synchronized (this) {
+			c = current;
+			downloaded = currentDownloaded;
+			current = null;
+		}
+		if (c==null)
+			return;
+		downloaded &= !c.isCancelled();
+		File source = downloaded ? store.findSource(c.getVideoId(), audioOnly) : null;
+		if (source!=null)
+			c.addBytesDownloaded(source.length());
+		handoff.add(new Finished(c, downloaded));
+	}
+	
+	private void finish(SongController c, boolean downloaded){
+		synchronized (this) {
+			if (finished.contains(c))
+				return;
+			finished.add(c);
+		}
+		c.setBatch(null);
+		if (downloaded)
+			c.foundVideo(store);
+		listener.videoDownloaded(c, downloaded);
+	}
+	
+	/**
+	 * Called when one of the songs is cancelled. If youtube-dl is on that song it is stopped
+	 * and started again with the rest.
+	 * @param cont
+	 */
+	public void cancel(SongController cont){
+		synchronized (this) {
+			if ((cont==current)&&(youtubeProc!=null))
+				youtubeProc.destroy();
+		}
+	}
+}
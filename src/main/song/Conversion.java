@@ -0,0 +1,59 @@
+package main.song;
+
+import java.io.File;
+
+/**
+ * How a song's audio gets from the downloaded file into the finished song. Copying just moves
+ * the audio into a new file and is nearly free, encoding to MP3 decodes and re-encodes it.
+ */
+public class Conversion {
+
+	public static final String M4A = "m4a";
+	public static final String OPUS = "opus";
+
+	/** File extension of the finished song */
+	public final String format;
+	/** True if the audio is copied as is */
+	public final boolean copy;
+
+	public Conversion(String format, boolean copy){
+		this.format = format;
+		this.copy = copy;
+	}
+
+	/**
+	 * Picks the cheapest way to get a song the user will take
+	 * @param codec The source's audio codec as ffmpeg names it, e.g. "aac", or null if unknown
+	 * @param keepAudioFormat Whether the user takes M4A and Opus songs as well as MP3s
+	 * @return
+	 */
+	public static Conversion choose(String codec, boolean keepAudioFormat){
+		if ("mp3".equals(codec))
+			return new Conversion(MediaStore.MP3, true);
+		if (keepAudioFormat && "aac".equals(codec))
+			return new Conversion(M4A, true);
+		if (keepAudioFormat && "opus".equals(codec))
+			return new Conversion(OPUS, true);
+		return new Conversion(MediaStore.MP3, false);
+	}
+
+	/**
+	 * Gets the ffmpeg command line. Paths aren't quoted: ProcessBuilder passes each one as a
+	 * single argument, quoting it itself on windows if it has spaces.
+	 * @param ffmpeg
+	 * @param source
+	 * @param dest
+	 * @param threads How many threads ffmpeg may use when encoding
+	 * @return
+	 */
+	public String[] getArgs(String ffmpeg, File source, File dest, int threads){
+		if (copy)
+			return new String[]{ffmpeg,"-y","-i",source.getPath(),"-vn","-c:a","copy",dest.getPath()};
+		return new String[]{ffmpeg,"-y","-threads",""+threads,"-i",source.getPath(),"-vn","-threads",""+threads,dest.getPath()};
+	}
+
+	@Override
+	public String toString(){
+		return (copy ? "copy " : "encode ")+format;
+	}
+}
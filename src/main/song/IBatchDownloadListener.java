@@ -0,0 +1,5 @@
+package main.song;
+
+public interface IBatchDownloadListener {
+	public void videoDownloaded(SongController cont, boolean downloaded);
+}
@@ -0,0 +1,18 @@
+package main.song;
+
+/**
+ * Hears about one song's download. Called from worker threads, so anything
+ * touching Swing has to get itself onto the event thread.
+ */
+public interface IJobListener {
+
+	public void jobLogged(SongController cont, String status);
+	
+	/**
+	 * The song details, state or files on disk changed
+	 */
+	public void jobUpdated(SongController cont);
+	
+	public void programMissing(SongController cont, String program);
+	
+}
@@ -0,0 +1,13 @@
+package main.song;
+
+/**
+ * Something on screen that shows a song and redraws itself from the song's latest state.
+ */
+public interface IRefreshable {
+
+	/**
+	 * Only called on the event thread, by the UpdateCoalescer
+	 */
+	public void refresh();
+
+}
@@ -1,6 +0,0 @@
-package main.song;
-
-public interface ISongDownloadedListener {
-	public void songDownloaded();
-	public void songCancelled();
-}
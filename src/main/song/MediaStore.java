@@ -0,0 +1,294 @@
+package main.song;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import main.Config;
+
+/**
+ * Keeps downloaded videos and the songs made from them under their youtube id, so a video is
+ * only downloaded and converted once no matter how many song lines lead to it.
+ *
+ * Videos are kept as source/[id].[ext], audio-only downloads as audio/[id].[ext] and finished
+ * songs as [format]/[id].[format]. Files only show up under their real name once they are
+ * complete. When several songs need the same file
+ * at once only the first one makes it and the rest wait for it. The store may be on a shared
+ * drive: lock files in locks/ keep other machines from making the same file at the same time.
+ *
+ * Settings in config.txt: media_store_dir, media_store_lock_minutes
+ */
+public class MediaStore {
+
+	public static final String MP3 = "mp3";
+
+	private static MediaStore thiz;
+
+	private File dir;
+	private File sourceDir;
+	private File audioDir;
+	private File lockDir;
+	private long lockTimeoutMillis;
+	private ConcurrentHashMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
+
+	public static synchronized MediaStore get(){
+		if (thiz==null){
+			thiz = new MediaStore(new File(Config.get("media_store_dir", "cache/media")),
+					Config.getLong("media_store_lock_minutes", 60)*60*1000);
+		}
+		return thiz;
+	}
+
+	/**
+	 * @param dir
+	 * @param lockTimeoutMillis How old another machine's lock has to be before it is
+	 * taken to be left over from a crash
+	 */
+	public MediaStore(File dir, long lockTimeoutMillis){
+		this.dir = dir;
+		this.lockTimeoutMillis = lockTimeoutMillis;
+		sourceDir = new File(dir, "source");
+		audioDir = new File(dir, "audio");
+		lockDir = new File(dir, "locks");
+		sourceDir.mkdirs();
+		audioDir.mkdirs();
+		lockDir.mkdirs();
+	}
+
+	/**
+	 * Gets the youtube-dl -o template that downloads into the store
+	 * @param audioOnly
+	 * @return
+	 */
+	public String getSourceTemplate(boolean audioOnly){
+		return (audioOnly ? audioDir : sourceDir).getAbsolutePath()+File.separator+"%(id)s.%(ext)s";
+	}
+
+	/**
+	 * Finds a completely downloaded video or audio track, whichever is there
+	 * @param videoId
+	 * @return null if neither is in the store
+	 */
+	public File findSource(String videoId){
+		return findSource(videoId, true);
+	}
+
+	/**
+	 * Finds a completely downloaded video. Half downloaded .part files and youtube-dl's
+	 * other temporary files have more than one dot and are skipped.
+	 * @param videoId
+	 * @param audioOnly If true an audio-only download will do, and is preferred
+	 * @return null if the video isn't in the store
+	 */
+	public File findSource(String videoId, boolean audioOnly){
+		File file = null;
+		if (audioOnly)
+			file = find(audioDir, videoId);
+		if (file==null)
+			file = find(sourceDir, videoId);
+		return file;
+	}
+
+	private static File find(File dir, String videoId){
+		String []files = dir.list();
+		if (files==null)
+			return null;
+		String prefix = videoId+".";
+		for(String name:files){
+			if (name.startsWith(prefix) && (name.indexOf('.', prefix.length())==-1))
+				return new File(dir, name);
+		}
+		return null;
+	}
+
+	/**
+	 * Gets where a finished song of the given format is kept, whether it is there yet or not
+	 * @param videoId
+	 * @param format File extension, e.g. MP3
+	 * @return
+	 */
+	public File getOutput(String videoId, String format){
+		return new File(new File(dir, format), videoId+"."+format);
+	}
+
+	/**
+	 * @param videoId
+	 * @param format
+	 * @return null if the song hasn't been made yet
+	 */
+	public File findOutput(String videoId, String format){
+		File file = getOutput(videoId, format);
+		return file.exists() ? file : null;
+	}
+
+	/**
+	 * Gets a file name to write a song to before it is finished. It keeps the format's
+	 * extension so ffmpeg knows what to write.
+	 * @param videoId
+	 * @param format
+	 * @return
+	 */
+	public File getTempOutput(String videoId, String format){
+		File formatDir = new File(dir, format);
+		formatDir.mkdirs();
+		return new File(formatDir, videoId+"."+Long.toHexString(System.nanoTime())+".tmp."+format);
+	}
+
+	/**
+	 * Moves a finished temp file to its real name in the store
+	 * @param temp From getTempOutput
+	 * @param videoId
+	 * @param format
+	 * @return false if it couldn't be moved
+	 */
+	public boolean publish(File temp, String videoId, String format){
+		try {
+			Files.move(temp.toPath(), getOutput(videoId, format).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Copies a finished song out of the store, e.g. into the "Download Folder"
+	 * @param videoId
+	 * @param format
+	 * @param dest
+	 * @return false if the song isn't in the store or couldn't be copied
+	 */
+	public boolean copyOut(String videoId, String format, File dest){
+		File file = findOutput(videoId, format);
+		if (file==null)
+			return false;
+		try {
+			Files.copy(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Runs work that makes the file under key, unless it is already being made. If another thread
+	 * is making it this waits for it and returns its result. If another machine holds the lock
+	 * this waits for it to let go and then runs work, which should check the store first.
+	 * @param key e.g. the video id and format
+	 * @param work Returns true if the file was made
+	 * @return
+	 * @throws InterruptedException
+	 * @throws IOException If the lock file couldn't be made, in which case work isn't run
+	 */
+	public boolean once(String key, Callable<Boolean> work) throws InterruptedException, IOException{
+		CompletableFuture<Boolean> mine = new CompletableFuture<Boolean>();
+		CompletableFuture<Boolean> running;
+		while ((running=inFlight.putIfAbsent(key, mine))!=null){
+			try {
+				Boolean made = running.get();
+				//null if a tryClaim() let go without making it
+				if (made!=null)
+					return made;
+			} catch (ExecutionException e) {
+				return false;
+			}
+		}
+		boolean result = false;
+		try{
+			File lock = getLock(key);
+			lock(lock);
+			try{
+				result = work.call();
+			}finally{
+				lock.delete();
+			}
+		}catch(InterruptedException e){
+			throw e;
+		}catch(IOException e){
+			throw e;
+		}catch(Exception e){
+			e.printStackTrace();
+		}finally{
+			inFlight.remove(key);
+			mine.complete(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Claims key like once() does, but gives up instead of waiting if another thread or machine
+	 * is making the file. For work that can do something else in the meantime, like a batch
+	 * download leaving the video for a later run. Call release() once the file is made or
+	 * given up on.
+	 * @param key
+	 * @return false if the file is being made elsewhere
+	 * @throws IOException If the lock file couldn't be made, like once()
+	 */
+	public boolean tryClaim(String key) throws IOException{
+		CompletableFuture<Boolean> mine = new CompletableFuture<Boolean>();
+		if (inFlight.putIfAbsent(key, mine)!=null)
+			return false;
+		boolean locked = false;
+		try {
+			locked = tryLock(getLock(key));
+		} finally {
+			if (!locked){
+				inFlight.remove(key);
+				//Anyone who started waiting in once() meanwhile goes for it themselves
+				mine.complete(null);
+			}
+		}
+		return locked;
+	}
+
+	/**
+	 * Lets go of a key from tryClaim()
+	 * @param key
+	 * @param made Whether the file was made, passed on to anyone waiting in once()
+	 */
+	public void release(String key, boolean made){
+		getLock(key).delete();
+		CompletableFuture<Boolean> mine = inFlight.remove(key);
+		if (mine!=null)
+			mine.complete(made);
+	}
+
+	private File getLock(String key){
+		return new File(lockDir, key+".lock");
+	}
+
+	/**
+	 * Creates the lock file, waiting while another machine has it
+	 * @param lock
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void lock(File lock) throws IOException, InterruptedException{
+		while (!tryLock(lock)){
+			Thread.sleep(1000);
+		}
+	}
+
+	/**
+	 * Creates the lock file unless another machine has it
+	 * @param lock
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean tryLock(File lock) throws IOException{
+		while (!lock.createNewFile()){
+			if (System.currentTimeMillis()-lock.lastModified() <= lockTimeoutMillis)
+				return false;
+			//Left over from a crash, or gone already
+			lock.delete();
+		}
+		return true;
+	}
+}
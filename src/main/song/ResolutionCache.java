@@ -0,0 +1,206 @@
+package main.song;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.Config;
+
+/**
+ * Remembers what each song line resolved to (video id, artist and title) so running the same
+ * list again skips the youtube search and title lookups. Lines that had no usable video are
+ * remembered as misses for a shorter time.
+ *
+ * The file is append-only, one tab separated line per result, and is read the first time the
+ * cache is used. When it holds many outdated lines it is rewritten with only the live ones.
+ *
+ * Settings in config.txt: resolve_cache_file, resolve_cache_ttl_days, resolve_cache_miss_ttl_hours
+ */
+public class ResolutionCache {
+
+	private static ResolutionCache thiz;
+	
+	private File file;
+	private long ttlMillis;
+	private long missTtlMillis;
+	private volatile ConcurrentHashMap<String, Result> results;
+	private BufferedWriter writer;
+	
+	public static class Result{
+		public final String videoId;
+		public final String artist;
+		public final String title;
+		final long time;
+		
+		Result(String videoId, String artist, String title, long time){
+			this.videoId = videoId;
+			this.artist = artist;
+			this.title = title;
+			this.time = time;
+		}
+		
+		public boolean isMiss(){
+			return videoId.length()==0;
+		}
+		
+		public String getUrl(){
+			return "http://www.youtube.com/watch?v="+videoId;
+		}
+	}
+	
+	public static synchronized ResolutionCache get(){
+		if (thiz==null){
+			thiz = new ResolutionCache(new File(Config.get("resolve_cache_file", "cache/resolved.txt")),
+					Config.getLong("resolve_cache_ttl_days", 30)*24*60*60*1000,
+					Config.getLong("resolve_cache_miss_ttl_hours", 6)*60*60*1000);
+		}
+		return thiz;
+	}
+	
+	public ResolutionCache(File file, long ttlMillis, long missTtlMillis){
+		this.file = file;
+		this.ttlMillis = ttlMillis;
+		this.missTtlMillis = missTtlMillis;
+	}
+	
+	/**
+	 * Turns a song line into the key it is cached under, so case and spacing don't matter.
+	 * Links keep their case, since video ids that only differ in case are different videos.
+	 * @param input
+	 * @return
+	 */
+	public static String normalize(String input){
+		String key = input.replace("\t", " - ").trim().replaceAll("\\s+", " ");
+		if (key.contains("://")||key.contains("watch?v=")||key.contains("youtu.be/"))
+			return key;
+		return key.toLowerCase();
+	}
+	
+	/**
+	 * @param input A song line
+	 * @return The remembered result, or null if there is none or it expired
+	 */
+	public Result lookup(String input){
+		Result result = getResults().get(normalize(input));
+		if ((result==null)||(isExpired(result)))
+			return null;
+		return result;
+	}
+	
+	public void put(String input, String videoId, String artist, String title){
+		store(normalize(input), new Result(videoId, clean(artist), clean(title), System.currentTimeMillis()));
+	}
+	
+	/**
+	 * Remembers that a song line has no usable video
+	 * @param input
+	 */
+	public void putMiss(String input){
+		put(input, "", "", "");
+	}
+	
+	private boolean isExpired(Result result){
+		long ttl = result.isMiss() ? missTtlMillis : ttlMillis;
+		return System.currentTimeMillis()-result.time > ttl;
+	}
+	
+	private void store(String query, Result result){
+		getResults().put(query, result);
+		synchronized (this) {
+			try {
+				if (writer==null){
+					file.getAbsoluteFile().getParentFile().mkdirs();
+					writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+				}
+				writer.write(toLine(query, result));
+				writer.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private ConcurrentHashMap<String, Result> getResults(){
+		if (results==null){
+			synchronized (this) {
+				if (results==null)
+					results = load();
+			}
+		}
+		return results;
+	}
+	
+	private ConcurrentHashMap<String, Result> load(){
+		ConcurrentHashMap<String, Result> map = new ConcurrentHashMap<String, Result>();
+		if (!file.exists())
+			return map;
+		int lines = 0;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try{
+				String line;
+				while ((line=reader.readLine())!=null){
+					lines++;
+					String []split = line.split("\t", -1);
+					if (split.length<5)
+						continue;
+					try{
+						Result result = new Result(split[2], split[3], split[4], Long.parseLong(split[0]));
+						if (isExpired(result)){
+							map.remove(split[1]);
+						}else{
+							map.put(split[1], result);
+						}
+					}catch(NumberFormatException e){
+					}
+				}
+			}finally{
+				reader.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (lines>2*map.size()+100)
+			compact(map);
+		return map;
+	}
+	
+	/**
+	 * Rewrites the file with only the results still in use
+	 * @param map
+	 */
+	private void compact(ConcurrentHashMap<String, Result> map){
+		File temp = new File(file.getPath()+".tmp");
+		try {
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+			try{
+				for(String query:map.keySet()){
+					out.write(toLine(query, map.get(query)));
+				}
+			}finally{
+				out.close();
+			}
+			file.delete();
+			temp.renameTo(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+		}
+	}
+	
+	private static String toLine(String query, Result result){
+		return result.time+"\t"+query+"\t"+result.videoId+"\t"+result.artist+"\t"+result.title+"\n";
+	}
+	
+	private static String clean(String field){
+		if (field==null)
+			return "";
+		return field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+}
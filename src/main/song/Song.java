@@ -50,6 +50,9 @@ public class Song {
 	}
 	
 	public void updateFile(){
+		//M4A and Opus songs are tagged by ffmpeg, SongController does that when they're updated
+		if (!songFileName.toLowerCase().endsWith(".mp3"))
+			return;
 		MP3 mp3=null;
 		try {
 			mp3 = new MP3(songFileName);
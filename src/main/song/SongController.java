@@ -1,37 +1,152 @@
 package main.song;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import main.SongDownloader;
+import main.Config;
 import main.WebPageReader;
+import main.pipeline.JobLog;
+import main.pipeline.JobState;
+import main.process.CpuBudget;
+import main.process.FfmpegProgressParser;
+import main.process.IProcessListener;
+import main.process.IProgressListener;
+import main.process.ProcessSupervisor;
+import main.process.Progress;
+import main.process.SupervisedProcess;
+import main.process.YoutubeDlProgressParser;
+import main.web.RateLimiter;
 
 import common.StringOps;
 
 public class SongController implements ISongUpdateListener{
 
 	private Song song;
-	private SongPanel songPanel;
+	private volatile IJobListener listener;
 	String input;
-	String log="";
-	private Thread convertThread;
-	private Thread downloadThread;
-	private Process youtubeProc;
-	private Process ffmpegProc;
-	boolean isCancelled = false;
-	ISongDownloadedListener downloadedListener;
+	volatile String status="Waiting...";
+	private SupervisedProcess youtubeProc;
+	private SupervisedProcess ffmpegProc;
+	private IProcessListener logListener = new IProcessListener() {
+		@Override
+		public void processLine(SupervisedProcess proc, boolean error, String line) {
+			checkThrottled(line);
+			log(line);
+		}
+		
+		@Override
+		public void processExited(SupervisedProcess proc, int exitCode) {
+		}
+	};
+	volatile boolean isCancelled = false;
+	String vidString;
+	String songFileName;
 	String finalFilName;
 	boolean keepVideo = false;
+	volatile boolean videoOnDisk = false;
+	String downloadDir = ".";
+	int id;
+	private AtomicReference<JobState> state = new AtomicReference<JobState>(JobState.QUEUED);
+	static final String YOUTUBE_DL = Config.get("youtube_dl_path", "youtube-dl.exe");
+	static final String FFMPEG = Config.get("ffmpeg_path", "ffmpeg.exe");
+	boolean streaming = false;
+	boolean audioOnly = true;
+	boolean keepAudioFormat = false;
+	volatile String conversion;
+	volatile int ffmpegThreads = 1;
+	/** A file name with something in it besides the " - " between artist and title */
+	static final Pattern NAMED = Pattern.compile("[\\p{L}\\p{N}]");
+	/** Rewrites the tags of M4A and Opus songs edited after they were done, one at a time and off the EDT */
+	private static final ExecutorService retagger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Retag");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private AtomicBoolean retagQueued = new AtomicBoolean(false);
+	static final Pattern AUDIO_STREAM = Pattern.compile("Stream #\\S+.*?: Audio: (\\w+)");
+	volatile long bytesDownloaded = 0;
+	/** youtube-dl -f for audio-only downloads, falling back to the muxed video when there is no audio-only format */
+	static final String AUDIO_FORMAT = "bestaudio/best";
+	private BatchDownload batch;
+	static final int STREAM_BUFFER_SIZE = 64*1024;
+	/** Watchdog deadlines for youtube-dl and ffmpeg, see SupervisedProcess.setDeadlines() */
+	static final long DOWNLOAD_IDLE_MS = Config.getLong("download_idle_seconds", 120)*1000;
+	static final long DOWNLOAD_MAX_MS = Config.getLong("download_max_minutes", 30)*60*1000;
+	static final long CONVERT_IDLE_MS = Config.getLong("convert_idle_seconds", 60)*1000;
+	static final long CONVERT_MAX_MS = Config.getLong("convert_max_minutes", 15)*60*1000;
+	volatile boolean hung = false;
+	volatile boolean throttled = false;
+	int retries = 0;
+	private final Progress progress = new Progress();
+	private IProgressListener progressListener = new IProgressListener() {
+		@Override
+		public void progressChanged(Progress p) {
+			updateProgress(p);
+		}
+	};
+	/** A streaming ffmpeg can't tell how long the piped video is, only how much it has written */
+	private IProgressListener streamProgressListener = new IProgressListener() {
+		@Override
+		public void progressChanged(Progress p) {
+			//youtube-dl's percent, when it gives one, says more
+			if (progress.percent>=0)
+				return;
+			progress.bytes = p.bytes;
+			progress.bytesPerSecond = p.bytesPerSecond;
+			fireUpdated();
+		}
+	};
+	/** Roughly how much of a song's time goes to downloading it, for the batch ETA */
+	static final double DOWNLOAD_SHARE = 0.8;
 	
+	/**
+	 * @param input A song line
+	 */
 	public SongController(String input){
 		this.input = input;
+	}
+	
+	/**
+	 * Finds the youtube video for the input line and fills in the song details from it.
+	 * Blocks on the youtube search and title lookups.
+	 * @return true if a video was found
+	 */
+	public boolean resolve(){
 		if (StringOps.isEmpty(input)){
-			return;
+			return false;
 		}
+		ResolutionCache.Result cached = ResolutionCache.get().lookup(input);
+		if (cached!=null){
+			if (cached.isMiss()){
+				log("Couldn't find a video for this song (remembered)");
+				return false;
+			}
+			song = new Song(cached.title,cached.artist,"","","","");
+			song.url = cached.getUrl();
+			song.addSongUpdateListener(this);
+			fireUpdated();
+			return true;
+		}
+		log("Searching");
 		if (input.contains("http://www.youtube.com/watch?v=")){
 			//Get title from youtube
 			String link = input;
@@ -57,20 +172,22 @@ public class SongController implements ISongUpdateListener{
 			song = new Song(songName,artist,"","","","");
 			song.addSongUpdateListener(this);
 			song.url = link;
-			songPanel = new SongPanel(this,false);
-			songPanel.label.setText(song.toString());
-			log("DLing video");
-			downloadVideo(link);
 		}else{
 			String string = input;
 			string = string.trim();
 			if (StringOps.isEmpty(string)){
-				return;
+				return false;
 			}
 			string = string.replace("\t", " - ");
-			String url = findFirstLinkFromSong(string);
+			int []found = new int[]{0};
+			String url = findFirstLinkFromSong(string, found);
 			if (url==null){
-				return;
+				log("Couldn't find a video for this song");
+				//Only a results page with nothing on it is remembered, not a search that was
+				//cancelled, failed or throttled
+				if ((found[0]>0)&&(!isCancelled))
+					ResolutionCache.get().putMiss(input);
+				return false;
 			}
 			int dashIndex = string.indexOf("-");
 			String artist = "";
@@ -102,139 +219,705 @@ public class SongController implements ISongUpdateListener{
 			song = new Song(songName,artist,"","","","");
 			song.url = url;
 			song.addSongUpdateListener(this);
-			songPanel = new SongPanel(this,false);
-			songPanel.label.setText(song.toString());
-			log("DLing video");
-			downloadVideo(url);
 		}
+		//A title lookup that failed is tried again next time instead of being remembered
+		if (!StringOps.isEmpty(song.title))
+			ResolutionCache.get().put(input, getVideoId(), song.artist, song.title);
+		fireUpdated();
+		return true;
 	}
 	
 	public SongController(){
-		songPanel = new SongPanel(this,true);
 	}
 	
 	public SongController(Song song){
 		this.song = song;
-		songPanel = new SongPanel(this,true);
 	}
 	
 	public String getTitleFromYoutubeLink(String link){
-		String results = WebPageReader.readWebPage(link);
-		String title = StringOps.getStringBetween(results, "<title>", "</title>");
-		return title.substring(0,title.indexOf(" - YouTube"));
+		String title = WebPageReader.extractBetween(link, "<title>", "</title>");
+		if (title==null)
+			return "";
+		int suffix = title.indexOf(" - YouTube");
+		if (suffix==-1)
+			return title;
+		return title.substring(0,suffix);
 	}
 	
+	/**
+	 * Sets the song's status line. Only the latest one is kept here, every one goes to the JobLog.
+	 * @param status
+	 */
 	public void log(String status){
-		log+=status;
 		if (isCancelled)
 			return;
-		if (songPanel!=null)
-			songPanel.log(status);
+		this.status = status;
+		JobLog.get().write(id, status);
+		IJobListener l = listener;
+		if (l!=null)
+			l.jobLogged(this, status);
+	}
+	
+	public String getStatus(){
+		return status;
+	}
+	
+	private void fireUpdated(){
+		IJobListener l = listener;
+		if (l!=null)
+			l.jobUpdated(this);
+	}
+	
+	/**
+	 * Sets who hears about this song. Songs have at most one listener, usually their SongPanel.
+	 * @param listener
+	 */
+	public void setJobListener(IJobListener listener){
+		this.listener = listener;
+	}
+	
+	/**
+	 * Downloads the .FLV or .MP4 at this song's youtube link into the MediaStore, or just its
+	 * audio if wantsAudioOnly(). Blocks until youtube-dl exits, or until another song
+	 * downloading the same video is done with it.
+	 * Skipped if the video or the finished song is already in the store.
+	 * @return true if the video was downloaded and can be converted
+	 */
+	public boolean downloadVideo(){
+		vidString = getVideoId();
+		final MediaStore store = MediaStore.get();
+		if (findConverted(store)!=null){
+			log("Already converted");
+			foundVideo(store);
+			return true;
+		}
+		final boolean audio = wantsAudioOnly();
+		boolean downloaded;
+		try {
+			downloaded = store.once(vidString+(audio ? ".audio" : ".source"), new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					if (store.findSource(vidString, audio)!=null)
+						return true;
+					return runYoutubeDl(store, audio);
+				}
+			});
+		} catch (InterruptedException e) {
+			return false;
+		} catch (IOException e) {
+			lockFailed(e);
+			return false;
+		}
+		if (!downloaded || isCancelled)
+			return false;
+		foundVideo(store);
+		return true;
 	}
 	
 	/**
-	 * Downloads the .FLV or .MP4 at the specified youtube link
-	 * @param ytLink
+	 * Points "Open Video" at the video in the MediaStore, if it is there
+	 * @param store
 	 */
-	public void downloadVideo(String ytLink){
-		final String[] args = new String[]{"youtube-dl.exe","-c", ytLink};
-		final String vidString = ytLink.substring(ytLink.indexOf("watch?v=")+8);
+	void foundVideo(MediaStore store){
+		File source = store.findSource(getVideoId());
+		finalFilName = (source==null) ? null : source.getPath();
+		setVideoOnDisk(source!=null);
+	}
+	
+	private boolean runYoutubeDl(MediaStore store, boolean audio){
+		String ytLink = song.url;
+		final String[] args = audio
+				? new String[]{YOUTUBE_DL,"-c","-f",AUDIO_FORMAT,"-o",store.getSourceTemplate(true), ytLink}
+				: new String[]{YOUTUBE_DL,"-c","-o",store.getSourceTemplate(false), ytLink};
+		log(audio ? "DLing audio" : "DLing video");
 		
+		final boolean []badVideo = new boolean[]{false};
+		if (!RateLimiter.get().acquire())
+			return false;
 		try {
-			youtubeProc = Runtime.getRuntime().exec(args);
-			downloadThread = new Thread(){
-				public void run(){
-					BufferedReader input = new BufferedReader(new InputStreamReader(youtubeProc.getInputStream()));
-					String line="";
-					try {
-						while ((line=input.readLine())!=null){
-							log(line);
-							if ((line.contains ("[youtube:channel]")) || (line.contains("Downloading video #"))){
-								log("Couldn't find a good video. Manually put in youtube link.");
-								log("Args: "+args.toString());
-								log("vidString: "+vidString);
-								break;
-							}
+			youtubeProc = ProcessSupervisor.get().start(args, new IProcessListener() {
+				@Override
+				public void processLine(SupervisedProcess proc, boolean error, String line) {
+					log(line);
+					if ((line.contains ("[youtube:channel]")) || (line.contains("Downloading video #"))){
+						if (!badVideo[0]){
+							badVideo();
+							log("Args: "+args.toString());
+							log("vidString: "+vidString);
 						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					if (!isCancelled){
-						log("Converting");
-						setOpenVideoButtonEnabled(true);
-						convertVideoToMp3(vidString);
+						badVideo[0] = true;
+						proc.destroy();
 					}
 				}
-			};
-			downloadThread.start();
+				
+				@Override
+				public void processExited(SupervisedProcess proc, int exitCode) {
+				}
+			});
+			youtubeProc.setDeadlines(DOWNLOAD_IDLE_MS, DOWNLOAD_MAX_MS);
+			youtubeProc.setProgressParser(new YoutubeDlProgressParser(progressListener));
 		}
 		catch (IOException e1) {
 			e1.printStackTrace();
-			SongDownloader.messageBox("You need youtube-dl.exe in the same folder as the program to run this.");
+			missingProgram(YOUTUBE_DL);
+			return false;
+		}
+		try {
+			youtubeProc.waitFor();
+		} catch (InterruptedException e) {
+			youtubeProc.destroy();
+			return false;
 		}
+		if (timedOut(youtubeProc, "youtube-dl"))
+			return false;
+		File source = store.findSource(vidString, audio);
+		if (badVideo[0] || isCancelled || (source==null))
+			return false;
+		addBytesDownloaded(source.length());
+		return true;
 	}
 	
 	/**
-	 * Converts a .FLV or .MP4 file to an .MP3 file in the "Download Folder"
-	 * @param vidString
+	 * Checks whether the watchdog killed a program, and if so marks the song to be tried again
+	 * @param proc
+	 * @param program For the log
+	 * @return true if it was killed
 	 */
-	public void convertVideoToMp3(String vidString){
-		File root = new File(".");
-		String []files = root.list();
-		String vidFileName = null;
-		for(int i=0;i<files.length;i++){
-			if (files[i].contains(vidString)){
-				vidFileName = files[i]; 
-				break;
-			}
+	private boolean timedOut(SupervisedProcess proc, String program){
+		String timeout = proc.getTimeout();
+		if (timeout==null)
+			return false;
+		hung(program+" "+timeout+", stopped it");
+		return true;
+	}
+	
+	/**
+	 * Called when a program working on this song hung and was killed
+	 * @param message
+	 */
+	void hung(String message){
+		hung = true;
+		log(message);
+	}
+	
+	/**
+	 * Whether the last download or conversion failed because a program hung, not because of
+	 * the video. Those are worth trying again.
+	 * @return
+	 */
+	public boolean isHung(){
+		return hung;
+	}
+	
+	/**
+	 * Notes youtube refusing a download for making too many requests
+	 * @param line A youtube-dl output line
+	 */
+	void checkThrottled(String line){
+		if (line.contains("HTTP Error 429")||line.contains("Too Many Requests"))
+			throttled = true;
+	}
+	
+	/**
+	 * Whether youtube refused the last download for making too many requests, not because of the video
+	 * @return
+	 */
+	public boolean isThrottled(){
+		return throttled;
+	}
+	
+	/**
+	 * @return How many times the song was tried again after hanging
+	 */
+	public int getRetries(){
+		return retries;
+	}
+	
+	/**
+	 * Called before the song is tried again after hanging
+	 * @return Which retry this is, starting at 1
+	 */
+	public int retrying(){
+		hung = false;
+		throttled = false;
+		return ++retries;
+	}
+	
+	/**
+	 * Takes the latest progress of this song's youtube-dl or ffmpeg
+	 * @param p
+	 */
+	void updateProgress(Progress p){
+		progress.set(p);
+		fireUpdated();
+	}
+	
+	/**
+	 * Gets how far the download or conversion the song is on has got. It starts over with each state.
+	 * @return
+	 */
+	public Progress getProgress(){
+		return progress;
+	}
+	
+	/**
+	 * Roughly how much of the song's work is done, for the batch ETA
+	 * @return 0 to 1
+	 */
+	public double getProgressFraction(){
+		JobState s = state.get();
+		if (s.isFinal()||(s==JobState.TAGGING))
+			return 1;
+		if (s==JobState.DOWNLOADING)
+			return DOWNLOAD_SHARE*progress.getFraction();
+		if (s==JobState.CONVERTING)
+			return DOWNLOAD_SHARE+(1-DOWNLOAD_SHARE)*progress.getFraction();
+		return 0;
+	}
+	
+	/**
+	 * Counts bytes fetched from youtube for this song. Songs served from the MediaStore count none.
+	 * @param bytes
+	 */
+	void addBytesDownloaded(long bytes){
+		bytesDownloaded += bytes;
+		log("Downloaded "+toMegabytes(bytes));
+	}
+	
+	public long getBytesDownloaded(){
+		return bytesDownloaded;
+	}
+	
+	public static String toMegabytes(long bytes){
+		return String.format("%.1f MB", bytes/(1024.0*1024.0));
+	}
+	
+	/**
+	 * Called when the video turned out to be a channel or playlist instead of a song.
+	 * The song line is remembered as a miss so it isn't searched for again right away.
+	 */
+	void badVideo(){
+		log("Couldn't find a good video. Manually put in youtube link.");
+		ResolutionCache.get().putMiss(input);
+	}
+	
+	/**
+	 * Turns the downloaded video into a song in the MediaStore and copies it to the
+	 * "Download Folder". The audio is copied as is when it already is MP3, or is AAC/Opus and
+	 * the user takes M4A/Opus songs. Otherwise it is encoded to MP3. Blocks until ffmpeg exits.
+	 * Only copies if another song already converted the same video.
+	 * @return true if the song was written
+	 */
+	public boolean convertVideo(){
+		vidString = getVideoId();
+		final MediaStore store = MediaStore.get();
+		String stored = findConverted(store);
+		if (stored!=null){
+			setConversion("stored "+stored);
+			foundVideo(store);
+			return copyOut(store, stored);
 		}
-		if (vidFileName==null){
-			log("Couldn't find downloading video. Download and convert manually");
+		File source = store.findSource(vidString);
+		if (source==null){
+			log("Couldn't find downloaded video. Download and convert manually");
 			log("vidString: "+vidString);
-			return;
+			return false;
 		}
+		final Conversion conv = Conversion.choose(probeCodec(source), keepAudioFormat);
+		setConversion(conv.toString());
+		log(conv.copy ? "Copying audio to "+conv.format+" (no re-encode)" : "Converting to "+conv.format);
+		boolean converted;
+		try {
+			converted = store.once(vidString+"."+conv.format, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					if (store.findOutput(vidString, conv.format)!=null)
+						return true;
+					return runFfmpeg(store, conv);
+				}
+			});
+		} catch (InterruptedException e) {
+			return false;
+		} catch (IOException e) {
+			lockFailed(e);
+			return false;
+		}
+		foundVideo(store);
+		return converted && copyOut(store, conv.format);
+	}
+	
+	/**
+	 * Finds a song already made from this video in a format the user takes
+	 * @param store
+	 * @return The format, or null if there is none
+	 */
+	String findConverted(MediaStore store){
+		String id = getVideoId();
+		if (keepAudioFormat){
+			if (store.findOutput(id, Conversion.M4A)!=null)
+				return Conversion.M4A;
+			if (store.findOutput(id, Conversion.OPUS)!=null)
+				return Conversion.OPUS;
+		}
+		if (store.findOutput(id, MediaStore.MP3)!=null)
+			return MediaStore.MP3;
+		return null;
+	}
+	
+	/**
+	 * Asks ffmpeg what the audio in a file is. ffmpeg -i with no output file just describes the input.
+	 * @param source
+	 * @return e.g. "aac", "opus" or "mp3", or null if ffmpeg didn't say
+	 */
+	private String probeCodec(File source){
+		final String []codec = new String[1];
+		try {
+			SupervisedProcess probe = ProcessSupervisor.get().start(new String[]{FFMPEG,"-hide_banner","-i",source.getPath()}, new IProcessListener() {
+				@Override
+				public void processLine(SupervisedProcess proc, boolean error, String line) {
+					Matcher matcher = AUDIO_STREAM.matcher(line);
+					if ((codec[0]==null)&&(matcher.find()))
+						codec[0] = matcher.group(1);
+				}
+				
+				@Override
+				public void processExited(SupervisedProcess proc, int exitCode) {
+				}
+			});
+			probe.setDeadlines(CONVERT_IDLE_MS, CONVERT_IDLE_MS);
+			probe.waitFor();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+		}
+		return codec[0];
+	}
+	
+	private boolean runFfmpeg(MediaStore store, Conversion conv){
+		File source = store.findSource(vidString);
+		if (source==null){
+			log("Couldn't find downloaded video. Download and convert manually");
+			return false;
+		}
+		File temp = store.getTempOutput(vidString, conv.format);
+		String[] args = conv.getArgs(FFMPEG, source, temp, ffmpegThreads);
+		//Shares the cores with streaming encoders, a core per thread. Copying doesn't encode.
+		Semaphore encoders = CpuBudget.getEncoders();
+		int cores = conv.copy ? 0 : Math.min(ffmpegThreads, CpuBudget.getCores());
+		if (!takeCores(encoders, cores))
+			return false;
 		
-		if (SongDownloader.downloadDir != null && !SongDownloader.downloadDir.equals("")){
-			if (SongDownloader.downloadDir.charAt(SongDownloader.downloadDir.length()-1)!='\\'){
-				SongDownloader.downloadDir = SongDownloader.downloadDir+= "\\";
+		int exitCode;
+		try {
+			ffmpegProc = ProcessSupervisor.get().start(args, logListener);
+			ffmpegProc.setDeadlines(CONVERT_IDLE_MS, CONVERT_MAX_MS);
+			ffmpegProc.setProgressParser(new FfmpegProgressParser(progressListener));
+			exitCode = ffmpegProc.waitFor();
+		}
+		catch (IOException e1) {
+			e1.printStackTrace();
+			missingProgram(FFMPEG);
+			return false;
+		} catch (InterruptedException e) {
+			ffmpegProc.destroy();
+			temp.delete();
+			return false;
+		} finally {
+			encoders.release(cores);
+		}
+		if ((exitCode!=0)||(isCancelled)){
+			if (!isCancelled && !timedOut(ffmpegProc, "ffmpeg"))
+				log("ffmpeg couldn't convert the video");
+			temp.delete();
+			return false;
+		}
+		return store.publish(temp, vidString, conv.format);
+	}
+	
+	/**
+	 * Copies the finished song from the MediaStore to the "Download Folder", named after the
+	 * song. If that name is taken, by another song or an earlier run, the video id is added
+	 * to it instead of overwriting the file.
+	 */
+	private boolean copyOut(MediaStore store, String format){
+		if (isCancelled)
+			return false;
+		//Without the dash left over when the artist or title is blank
+		String name = toFileName(song.toString()).replaceAll("^[\\s-]+|[\\s-]+$", "");
+		//e.g. a link whose title couldn't be looked up
+		if (!NAMED.matcher(name).find())
+			name = vidString;
+		File dest = new File(getDownloadDir()+name+"."+format);
+		try {
+			//Taking the name by creating the file means two songs can't both get it
+			if ((!name.equals(vidString))&&(!dest.createNewFile()))
+				dest = new File(getDownloadDir()+name+" ["+vidString+"]."+format);
+		} catch (IOException e) {
+			e.printStackTrace();
+			log("Couldn't write to the download folder");
+			return false;
+		}
+		songFileName = dest.getPath();
+		if (!store.copyOut(vidString, format, dest)){
+			log("Couldn't copy the song to the download folder");
+			if (dest.length()==0)
+				dest.delete();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Downloads and converts in one pass. youtube-dl writes the video to its stdout, which is
+	 * copied into ffmpeg's stdin, so the .MP3 is written while the video is still downloading
+	 * and no video file is left on disk. Blocks until both programs exit.
+	 * Only copies if the MediaStore already has the .MP3.
+	 * @return true if the .MP3 was written
+	 */
+	public boolean streamToMp3(){
+		vidString = getVideoId();
+		final MediaStore store = MediaStore.get();
+		String stored = findConverted(store);
+		if (stored!=null){
+			setConversion("stored "+stored);
+			return copyOut(store, stored);
+		}
+		//The codec isn't known until the video arrives, so streams are always encoded
+		setConversion("stream "+MediaStore.MP3);
+		boolean converted;
+		try {
+			converted = store.once(vidString+"."+MediaStore.MP3, new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					if (store.findOutput(vidString, MediaStore.MP3)!=null)
+						return true;
+					return runStream(store);
+				}
+			});
+		} catch (InterruptedException e) {
+			return false;
+		} catch (IOException e) {
+			lockFailed(e);
+			return false;
+		}
+		return converted && copyOut(store, MediaStore.MP3);
+	}
+	
+	/**
+	 * Waits for a core to encode on, so however many downloads stream at once only as many
+	 * ffmpegs run as there are cores. youtube-dl only starts once there is one, since ffmpeg
+	 * has to keep up with it.
+	 */
+	private boolean runStream(MediaStore store){
+		Semaphore encoders = CpuBudget.getEncoders();
+		if (!takeCores(encoders, 1))
+			return false;
+		try{
+			return pipeStream(store);
+		}finally{
+			encoders.release();
+		}
+	}
+	
+	/**
+	 * Waits until the cores are free
+	 * @param encoders CpuBudget.getEncoders()
+	 * @param cores
+	 * @return false if the song was cancelled first
+	 */
+	private boolean takeCores(Semaphore encoders, int cores){
+		try {
+			if (!encoders.tryAcquire(cores)){
+				log("Waiting for a free core");
+				while (!encoders.tryAcquire(cores, 1, TimeUnit.SECONDS)){
+					if (isCancelled)
+						return false;
+				}
 			}
-		}else{
-			SongDownloader.downloadDir = ".\\";
+		} catch (InterruptedException e) {
+			return false;
 		}
-		final String songFileName = SongDownloader.downloadDir+vidFileName.replace(".mp4", ".mp3").replace(".flv",".mp3").replace("-"+vidString, "").replace(".part", "");
-		String[] args = new String[]{"ffmpeg.exe","-y", "-i","\""+vidFileName+"\"","\""+songFileName+"\""};
+		return true;
+	}
+	
+	private boolean pipeStream(MediaStore store){
+		String ytLink = song.url;
+		File temp = store.getTempOutput(vidString, MediaStore.MP3);
+		log("Streaming video to mp3");
 		
+		if (!RateLimiter.get().acquire())
+			return false;
 		try {
-			ffmpegProc = Runtime.getRuntime().exec(args);
-			finalFilName = vidFileName;
-			convertThread = new Thread(){
-				public void run(){
-					BufferedReader input = new BufferedReader(new InputStreamReader(ffmpegProc.getInputStream()));
-					String line="";
-					try {
-						while ((line=input.readLine())!=null){
-							log(line);
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					if (!isCancelled){
-						log("Done");
-						song.setFile(songFileName);
-						if (!keepVideo){
-							new File(finalFilName).delete();
-							setOpenVideoButtonEnabled(false);
-						}
-						if (downloadedListener!=null)
-							downloadedListener.songDownloaded();
-					}
-				}
-			};
-			convertThread.start();
+			//With -o - youtube-dl reports on stderr and leaves stdout for the video
+			youtubeProc = ProcessSupervisor.get().start(new String[]{YOUTUBE_DL,"-f",audioOnly ? AUDIO_FORMAT : "best","-o","-", ytLink}, logListener, false);
+			youtubeProc.setDeadlines(DOWNLOAD_IDLE_MS, DOWNLOAD_MAX_MS);
+			//The download's progress is the song's, ffmpeg only fills in the size if it has none
+			youtubeProc.setProgressParser(new YoutubeDlProgressParser(progressListener));
+		}
+		catch (IOException e1) {
+			e1.printStackTrace();
+			missingProgram(YOUTUBE_DL);
+			return false;
+		}
+		try {
+			//Streams are encoded on the download stage, as fast as the video arrives, so they get one thread
+			ffmpegProc = ProcessSupervisor.get().start(new String[]{FFMPEG,"-y","-threads","1","-i","pipe:0","-threads","1",temp.getPath()}, logListener);
+			//ffmpeg goes as fast as the video arrives, so it gets the download deadlines
+			ffmpegProc.setDeadlines(DOWNLOAD_IDLE_MS, DOWNLOAD_MAX_MS);
+			ffmpegProc.setProgressParser(new FfmpegProgressParser(streamProgressListener));
 		}
 		catch (IOException e1) {
 			e1.printStackTrace();
-			SongDownloader.messageBox("You need ffmpeg.exe in the same folder as the program to run this.");
+			youtubeProc.destroy();
+			missingProgram(FFMPEG);
+			return false;
+		}
+		
+		InputStream video = youtubeProc.getOutput();
+		OutputStream ffmpegIn = ffmpegProc.getInput();
+		byte []buffer = new byte[STREAM_BUFFER_SIZE];
+		int read;
+		long total = 0;
+		try {
+			while ((read=video.read(buffer))!=-1){
+				ffmpegIn.write(buffer, 0, read);
+				total += read;
+				youtubeProc.touch();
+			}
+		} catch (IOException e) {
+			//ffmpeg quit or the song was cancelled
+			youtubeProc.destroy();
+			if (!isCancelled)
+				log("Streaming failed: "+e.getMessage());
+		}
+		try {
+			ffmpegIn.close();
+		} catch (IOException e) {
+		}
+		addBytesDownloaded(total);
+		try {
+			int exitCode = ffmpegProc.waitFor();
+			//A youtube-dl that died part way leaves ffmpeg a cut off video, which it still converts fine
+			int youtubeExitCode = youtubeProc.waitFor();
+			boolean killed = timedOut(youtubeProc, "youtube-dl") | timedOut(ffmpegProc, "ffmpeg");
+			if ((exitCode!=0)||(youtubeExitCode!=0)||killed){
+				if (!isCancelled && !killed){
+					if (youtubeExitCode!=0)
+						log("youtube-dl stopped before the whole video was downloaded");
+					else
+						log("ffmpeg couldn't convert the video");
+				}
+				temp.delete();
+				return false;
+			}
+		} catch (InterruptedException e) {
+			temp.delete();
+			return false;
+		}
+		if (isCancelled){
+			temp.delete();
+			return false;
+		}
+		return store.publish(temp, vidString, MediaStore.MP3);
+	}
+	
+	/**
+	 * Gets the "Download Folder", ending with a path separator
+	 * @return
+	 */
+	public String getDownloadDir(){
+		if (StringOps.isEmpty(downloadDir)){
+			downloadDir = ".";
+		}
+		if (!downloadDir.endsWith(File.separator)){
+			downloadDir += File.separator;
+		}
+		return downloadDir;
+	}
+	
+	public void setDownloadDir(String dir){
+		downloadDir = dir;
+	}
+	
+	/**
+	 * Tells the user the MediaStore couldn't lock the file this song needs, so it wasn't made
+	 * @param e
+	 */
+	void lockFailed(IOException e){
+		e.printStackTrace();
+		log("Couldn't lock the video in the media store: "+e.getMessage());
+	}
+	
+	/**
+	 * Tells the user a program the download needs couldn't be started
+	 * @param program
+	 */
+	void missingProgram(String program){
+		log("You need "+program+" in the same folder as the program to run this.");
+		IJobListener l = listener;
+		if (l!=null)
+			l.programMissing(this, program);
+	}
+	
+	/**
+	 * Strips the characters windows doesn't allow in file names
+	 * @param name
+	 * @return
+	 */
+	private static String toFileName(String name){
+		return name.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+	}
+	
+	/**
+	 * Writes the song details into the converted .MP3 and cleans up the video.
+	 */
+	public void tagSong(){
+		if (!songFileName.endsWith("."+MediaStore.MP3))
+			writeTags(songFileName);
+		song.setFile(songFileName);
+		if (!keepVideo && finalFilName!=null){
+			new File(finalFilName).delete();
+			setVideoOnDisk(false);
+		}
+		log("Done");
+	}
+	
+	/**
+	 * Tags an M4A or Opus song, which the MP3 library can't, by having ffmpeg copy it with the tags added
+	 * @return false if ffmpeg failed and the file was left as it was
+	 */
+	private boolean writeTags(String fileName){
+		File file = new File(fileName);
+		File temp = new File(file.getParentFile(), "tagging-"+file.getName());
+		ArrayList<String> args = new ArrayList<String>();
+		Collections.addAll(args, FFMPEG,"-y","-i",file.getPath(),"-map","0","-c","copy");
+		addTag(args, "title", song.title);
+		addTag(args, "artist", song.artist);
+		addTag(args, "album", song.album);
+		addTag(args, "date", song.year);
+		addTag(args, "comment", song.comment);
+		args.add(temp.getPath());
+		try {
+			ffmpegProc = ProcessSupervisor.get().start(args.toArray(new String[args.size()]), logListener);
+			ffmpegProc.setDeadlines(CONVERT_IDLE_MS, CONVERT_MAX_MS);
+			if (ffmpegProc.waitFor()==0){
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				return true;
+			}
+			log("ffmpeg couldn't tag the song");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			ffmpegProc.destroy();
+		}
+		temp.delete();
+		return false;
+	}
+	
+	private static void addTag(ArrayList<String> args, String name, String value){
+		if (!StringOps.isEmpty(value)){
+			args.add("-metadata");
+			args.add(name+"="+value);
 		}
 	}
 	
@@ -244,27 +927,23 @@ public class SongController implements ISongUpdateListener{
 	 * @return
 	 */
 	public String findFirstLinkFromSong(String song){
+		return findFirstLinkFromSong(song, null);
+	}
+	
+	/**
+	 * @param song
+	 * @param found If not null, found[0] is 0 when no results page was read, e.g. the search
+	 * was cancelled or failed, and more than 0 when one was
+	 * @return
+	 */
+	public String findFirstLinkFromSong(String song, int []found){
 		song = song.replaceAll(" ", "%20").replace("&", "%26");
-		String results="";
-		try{
-			results = WebPageReader.readWebPage("http://www.youtube.com/results?search_query="+song);
-		}catch(Exception e){
-		}
-		int index = results.indexOf("<ol id=\"search-results\"");
-		if (index==-1){
+		String link = WebPageReader.extractBetween("http://www.youtube.com/results?search_query="+song, found,
+				"<ol id=\"search-results\"", "<a href=\"", "\"");
+		if (link==null){
 			return null;
 		}
-		String trimmed = results.substring(index);
-		
-		String prefix = "<a href=\"";
-		String suffix = "\"";
-		int start = trimmed.indexOf(prefix)+prefix.length();
-		int end = trimmed.indexOf(suffix, start);
-		return "http://www.youtube.com"+trimmed.substring(start,end);
-	}
-	
-	public SongPanel getSongPanel(){
-		return songPanel;
+		return "http://www.youtube.com"+link;
 	}
 	
 	public Song getSong(){
@@ -287,28 +966,36 @@ public class SongController implements ISongUpdateListener{
 		}
 	}
 	
-	public void edit(){
-		if (songPanel.dialog==null){
-			if (song==null){
-				setSong(new Song("New Song","New Artist", "New Album", "New Year", "New Comment", "New Genre"));
-			}
-			songPanel.dialog = new SongDialog(this.song);
-		}
-		songPanel.dialog.setVisible(true);
-	}
-	
 	public void setSong(Song song){
 		this.song = song;
 		this.song.addSongUpdateListener(this);
-		songPanel.label.setText(this.song.toString());
+		fireUpdated();
 	}
 
 	@Override
 	public void songUpdated(Song s) {
-		songPanel.label.setText(song.toString());
-		if (songPanel.dialog==null)
-			songPanel.dialog = new SongDialog(this.song);
-		songPanel.dialog.updateFields(s);
+		fireUpdated();
+		String file = s.getFile();
+		//Song only writes .mp3 tags itself
+		if ((file!=null)&&!file.toLowerCase().endsWith("."+MediaStore.MP3))
+			retag(file);
+	}
+	
+	/**
+	 * Has ffmpeg write the song's edited details into a finished M4A or Opus file.
+	 * Edits made while one is waiting are picked up by it.
+	 */
+	private void retag(final String fileName){
+		if (!retagQueued.compareAndSet(false, true))
+			return;
+		retagger.execute(new Runnable() {
+			@Override
+			public void run() {
+				retagQueued.set(false);
+				if (writeTags(fileName))
+					log("Saved the new tags");
+			}
+		});
 	}
 	
 	public void cancel(){
@@ -317,31 +1004,137 @@ public class SongController implements ISongUpdateListener{
 			isCancelled = true;
 			if (youtubeProc!=null)
 				youtubeProc.destroy();
-			if (convertThread!=null)
-				convertThread.interrupt();
-			if (downloadThread!=null)
-				downloadThread.interrupt();
 			if (ffmpegProc!=null)
 				ffmpegProc.destroy();
-			songPanel.cancelButton.setEnabled(false);
-			songPanel.editButton.setEnabled(false);
-			if (downloadedListener!=null)
-				downloadedListener.songDownloaded();
+			if (batch!=null)
+				batch.cancel(this);
+		}
+		fireUpdated();
+	}
+	
+	public boolean isCancelled(){
+		return isCancelled;
+	}
+	
+	public int getId(){
+		return id;
+	}
+	
+	public void setId(int id){
+		this.id = id;
+	}
+	
+	public JobState getState(){
+		return state.get();
+	}
+	
+	/**
+	 * Moves the song to a new state. Once it is DONE, FAILED or CANCELLED it stays there, so
+	 * a song that ends twice, e.g. when it is cancelled while failing, only ends once.
+	 * @param next
+	 * @return false if the song had already ended
+	 */
+	public boolean setState(JobState next){
+		JobState current;
+		do{
+			current = state.get();
+			if (current.isFinal())
+				return false;
+		}while (!state.compareAndSet(current, next));
+		progress.reset();
+		fireUpdated();
+		return true;
+	}
+	
+	public String getInput(){
+		return input;
+	}
+	
+	/**
+	 * Gets the youtube id of this song's video, which youtube-dl puts in the video's file name
+	 * @return
+	 */
+	public String getVideoId(){
+		if (vidString==null){
+			vidString = song.url.substring(song.url.indexOf("watch?v=")+8);
 		}
+		return vidString;
+	}
+	
+	synchronized void setBatch(BatchDownload batch){
+		this.batch = batch;
 	}
 	
-	public void setSongDownloadedListener(ISongDownloadedListener listener){
-		this.downloadedListener = listener;
+	void setVideoOnDisk(boolean b){
+		videoOnDisk = b;
+		fireUpdated();
 	}
 	
-	public void setOpenVideoButtonEnabled(boolean b){
-		songPanel.openVideoButton.setEnabled(b);
+	/**
+	 * Whether the downloaded video is still around to be opened
+	 * @return
+	 */
+	public boolean hasVideo(){
+		return videoOnDisk;
 	}
 	
 	public void setKeepVideo(boolean b){
 		keepVideo = b;
 	}
 	
+	public void setStreaming(boolean b){
+		streaming = b;
+	}
+	
+	public void setAudioOnly(boolean b){
+		audioOnly = b;
+	}
+	
+	/**
+	 * @param b Whether M4A and Opus songs will do, so their audio can be copied instead of encoded to MP3
+	 */
+	public void setKeepAudioFormat(boolean b){
+		keepAudioFormat = b;
+	}
+	
+	/**
+	 * @param threads How many threads an encoding ffmpeg may use, so all the converting songs fit the cores
+	 */
+	public void setFfmpegThreads(int threads){
+		ffmpegThreads = threads;
+	}
+	
+	private void setConversion(String conversion){
+		this.conversion = conversion;
+		fireUpdated();
+	}
+	
+	/**
+	 * Gets how the song was made, e.g. "copy m4a", "encode mp3" or "stored mp3" if it was
+	 * already in the MediaStore
+	 * @return null until it is converted
+	 */
+	public String getConversion(){
+		return conversion;
+	}
+	
+	/**
+	 * Whether to download just the audio track. Kept videos are always downloaded whole.
+	 * @return
+	 */
+	public boolean wantsAudioOnly(){
+		return audioOnly && !keepVideo;
+	}
+	
+	/**
+	 * Whether this song should be piped straight from youtube-dl into ffmpeg.
+	 * Kept videos always go through a file.
+	 * @return
+	 */
+	public boolean isStreaming(){
+		return streaming && !keepVideo;
+	}
+	
 	public void openVideo(){
 		try {
 			Runtime.getRuntime().exec("rundll32 url.dll,FileProtocolHandler "+finalFilName);
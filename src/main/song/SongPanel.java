@@ -1,5 +1,6 @@
 package main.song;
 
+import java.awt.EventQueue;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -9,7 +10,15 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 
-public class SongPanel extends JPanel{
+import main.SongDownloader;
+import main.pipeline.JobState;
+
+/**
+ * Shows one song's download. The SongController knows nothing about this panel,
+ * it just tells whoever is listening what happened. Changes are redrawn by the
+ * UpdateCoalescer, not one by one as they happen.
+ */
+public class SongPanel extends JPanel implements IJobListener, IRefreshable{
 
 	private static final long serialVersionUID = 1L;
 	
@@ -21,7 +30,6 @@ public class SongPanel extends JPanel{
 	JButton youtubeButton;
 	public SongDialog dialog;
 	boolean mainSongPanel;
-	String logText="";
 	SongController cont;
 	JPanel buttonPanel;
 	JTextField logField;
@@ -99,6 +107,11 @@ public class SongPanel extends JPanel{
 	public SongPanel(SongController cont, boolean mainSongPanel){
 		this(mainSongPanel);
 		this.cont = cont;
+		cont.setJobListener(this);
+		if (!mainSongPanel){
+			logField.setText(cont.getStatus());
+			update();
+		}
 	}
 	
 	public void openSong(){
@@ -114,20 +127,68 @@ public class SongPanel extends JPanel{
 	}
 	
 	public void edit(){
-		cont.edit();
+		if (dialog==null){
+			if (cont.getSong()==null){
+				cont.setSong(new Song("New Song","New Artist", "New Album", "New Year", "New Comment", "New Genre"));
+			}
+			dialog = new SongDialog(cont.getSong());
+		}
+		dialog.setVisible(true);
 	}
 	
 	public void setSong(Song song){
 		cont.setSong(song);
 	}
 	
-	public void log(String text){
-		logText += text;
-		logField.setText(text);
-		if (text.equalsIgnoreCase("done")){
-			openSongButton.setEnabled(true);
+	@Override
+	public void jobLogged(SongController cont, String status) {
+		if (mainSongPanel)
+			return;
+		UpdateCoalescer.get().changed(this);
+	}
+	
+	@Override
+	public void jobUpdated(SongController cont) {
+		UpdateCoalescer.get().changed(this);
+	}
+	
+	@Override
+	public void refresh() {
+		if (!mainSongPanel)
+			logField.setText(cont.getStatus());
+		update();
+	}
+	
+	@Override
+	public void programMissing(SongController cont, final String program) {
+		EventQueue.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				SongDownloader.messageBox("You need "+program+" in the same folder as the program to run this.");
+			}
+		});
+	}
+	
+	/**
+	 * Makes the label and buttons match the song. Only call on the event thread.
+	 */
+	private void update(){
+		Song song = cont.getSong();
+		if ((dialog!=null)&&(song!=null))
+			dialog.updateFields(song);
+		if (mainSongPanel)
+			return;
+		String text = (song==null) ? cont.getInput() : song.toString();
+		if (cont.getConversion()!=null)
+			text += " ("+cont.getConversion()+")";
+		label.setText(text);
+		openVideoButton.setEnabled(cont.hasVideo());
+		JobState state = cont.getState();
+		openSongButton.setEnabled(state==JobState.DONE);
+		if (cont.isCancelled() || state.isFinal())
 			cancelButton.setEnabled(false);
-		}
+		if (cont.isCancelled())
+			editButton.setEnabled(false);
 	}
 	
 	public void cancel(){
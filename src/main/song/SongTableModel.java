@@ -0,0 +1,275 @@
+package main.song;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.swing.table.AbstractTableModel;
+
+import main.Config;
+import main.SongDownloader;
+import main.pipeline.JobState;
+import main.process.Progress;
+
+/**
+ * One row per song for the song table. Songs can be added and can change on any thread, but
+ * the table only hears about it on the UpdateCoalescer's ticks: new songs come in as one block
+ * of rows and each changed song is one row update, however often it changed.
+ *
+ * Each row keeps a copy of what it shows, taken on the tick, so sorting and filtering never
+ * see a song change halfway through.
+ *
+ * Songs that are done or cancelled are dropped, oldest first, once there are more than
+ * table_max_rows, so a long list doesn't keep every song it ever had. Failed songs stay.
+ *
+ * Settings in config.txt: table_max_rows
+ */
+public class SongTableModel extends AbstractTableModel implements IJobListener, IRefreshable{
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int ID = 0;
+	public static final int SONG = 1;
+	public static final int STATE = 2;
+	public static final int PROGRESS = 3;
+	public static final int STATUS = 4;
+	public static final int CONVERSION = 5;
+	private static final String []COLUMNS = {"#", "Song", "State", "Progress", "Status", "Made by"};
+
+	/** Only touched on the event thread */
+	private ArrayList<Row> rows = new ArrayList<Row>();
+	private HashMap<SongController, Integer> rowOf = new HashMap<SongController, Integer>();
+	private ConcurrentLinkedQueue<SongController> added = new ConcurrentLinkedQueue<SongController>();
+	private Set<SongController> changed = ConcurrentHashMap.<SongController>newKeySet();
+	private Set<String> missingPrograms = ConcurrentHashMap.<String>newKeySet();
+	private int maxRows = Math.max(10, Config.getInt("table_max_rows", 10000));
+
+	/**
+	 * What a row shows, as of the last tick
+	 */
+	private static class Row{
+		final SongController cont;
+		String song;
+		JobState state;
+		int percent;
+		String progress;
+		String status;
+		String conversion;
+
+		Row(SongController cont){
+			this.cont = cont;
+			update();
+		}
+
+		void update(){
+			Song s = cont.getSong();
+			song = (s==null) ? cont.getInput() : s.toString();
+			state = cont.getState();
+			Progress p = cont.getProgress();
+			percent = (int)p.percent;
+			progress = p.toString();
+			status = cont.getStatus();
+			conversion = cont.getConversion();
+			if (conversion==null)
+				conversion = "";
+		}
+	}
+
+	/**
+	 * Adds a song at the end of the table on the next tick. Can be called from any thread.
+	 * @param cont
+	 */
+	public void add(SongController cont){
+		cont.setJobListener(this);
+		added.add(cont);
+		UpdateCoalescer.get().changed(this);
+	}
+
+	/**
+	 * Drops every song. Only call on the event thread.
+	 */
+	public void clear(){
+		for(Row row:rows){
+			row.cont.setJobListener(null);
+		}
+		added.clear();
+		changed.clear();
+		rows.clear();
+		rowOf.clear();
+		missingPrograms.clear();
+		fireTableDataChanged();
+	}
+
+	/**
+	 * @param row In the model, not the view
+	 * @return
+	 */
+	public SongController getController(int row){
+		return rows.get(row).cont;
+	}
+
+	/**
+	 * Gets every song in the table, including ones added since the last tick. Songs dropped
+	 * from the table aren't kept anywhere else, so this is the list of the batch's songs.
+	 * Only call on the event thread.
+	 * @return
+	 */
+	public List<SongController> getControllers(){
+		ArrayList<SongController> conts = new ArrayList<SongController>(rows.size()+added.size());
+		for(Row row:rows){
+			conts.add(row.cont);
+		}
+		conts.addAll(added);
+		return conts;
+	}
+
+	/**
+	 * @param cont
+	 * @return false if the song was never added or has been dropped. Only call on the event thread.
+	 */
+	public boolean contains(SongController cont){
+		return rowOf.containsKey(cont)||added.contains(cont);
+	}
+
+	/**
+	 * Gets the song's state as the table shows it, which may be a tick behind the song's
+	 * @param row In the model
+	 * @return
+	 */
+	public JobState getState(int row){
+		return rows.get(row).state;
+	}
+
+	/**
+	 * @param row In the model
+	 * @return e.g. "45% of 3.5 MB at 1.2 MB/s, 0:02 left", or "" if the song isn't running
+	 */
+	public String getProgressText(int row){
+		return rows.get(row).progress;
+	}
+
+	@Override
+	public void refresh() {
+		int first = rows.size();
+		SongController cont;
+		while ((cont=added.poll())!=null){
+			rowOf.put(cont, rows.size());
+			rows.add(new Row(cont));
+		}
+		if (rows.size()>first)
+			fireTableRowsInserted(first, rows.size()-1);
+		Iterator<SongController> it = changed.iterator();
+		while (it.hasNext()){
+			cont = it.next();
+			it.remove();
+			Integer row = rowOf.get(cont);
+			//Rows that were just inserted are drawn fresh anyway
+			if ((row!=null)&&(row<first)){
+				rows.get(row).update();
+				fireTableRowsUpdated(row, row);
+			}
+		}
+		if (rows.size()>maxRows)
+			dropFinished();
+	}
+
+	/**
+	 * Drops the oldest done and cancelled songs, a tenth more than needed so this doesn't
+	 * happen on every tick
+	 */
+	private void dropFinished(){
+		int toDrop = rows.size()-(maxRows-maxRows/10);
+		ArrayList<Row> kept = new ArrayList<Row>(rows.size());
+		for(Row row:rows){
+			if ((toDrop>0)&&((row.state==JobState.DONE)||(row.state==JobState.CANCELLED))){
+				row.cont.setJobListener(null);
+				toDrop--;
+			}else{
+				kept.add(row);
+			}
+		}
+		if (kept.size()==rows.size())
+			return;
+		rows = kept;
+		rowOf.clear();
+		for(int i=0;i<rows.size();i++){
+			rowOf.put(rows.get(i).cont, i);
+		}
+		fireTableDataChanged();
+	}
+
+	@Override
+	public void jobLogged(SongController cont, String status) {
+		jobUpdated(cont);
+	}
+
+	@Override
+	public void jobUpdated(SongController cont) {
+		changed.add(cont);
+		UpdateCoalescer.get().changed(this);
+	}
+
+	/**
+	 * Tells the user once per program, not once for every song that needed it
+	 */
+	@Override
+	public void programMissing(SongController cont, final String program) {
+		if (!missingPrograms.add(program))
+			return;
+		EventQueue.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				SongDownloader.messageBox("You need "+program+" in the same folder as the program to run this.");
+			}
+		});
+	}
+
+	@Override
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	@Override
+	public int getColumnCount() {
+		return COLUMNS.length;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return COLUMNS[column];
+	}
+
+	@Override
+	public Class<?> getColumnClass(int column) {
+		if ((column==ID)||(column==PROGRESS))
+			return Integer.class;
+		if (column==STATE)
+			return JobState.class;
+		return String.class;
+	}
+
+	@Override
+	public Object getValueAt(int row, int column) {
+		Row r = rows.get(row);
+		switch(column){
+		case ID:
+			return r.cont.getId();
+		case SONG:
+			return r.song;
+		case STATE:
+			return r.state;
+		case PROGRESS:
+			return r.percent;
+		case STATUS:
+			return r.status;
+		case CONVERSION:
+			return r.conversion;
+		}
+		return null;
+	}
+}
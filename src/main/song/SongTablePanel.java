@@ -0,0 +1,303 @@
+package main.song;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.RowFilter;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import javax.swing.table.TableCellRenderer;
+import javax.swing.table.TableRowSorter;
+
+import main.pipeline.JobState;
+
+/**
+ * Lists every song of the batch in a table. A table only draws the rows that are on screen,
+ * so a batch of thousands of songs costs no more to show than a few. The buttons work on
+ * the selected songs. Click a column to sort by it, and pick which songs to show by state.
+ */
+public class SongTablePanel extends JPanel{
+
+	private static final long serialVersionUID = 1L;
+	private static final String []SHOW = {"All Songs", "Waiting", "Working", "Done", "Failed", "Cancelled"};
+
+	SongTableModel model;
+	JTable table;
+	TableRowSorter<SongTableModel> sorter;
+	RowFilter<SongTableModel, Integer> stateFilter;
+	JComboBox<String> showBox;
+	JButton editButton;
+	JButton openSongButton;
+	JButton openVideoButton;
+	JButton youtubeButton;
+	JButton cancelButton;
+	HashMap<SongController, SongDialog> dialogs = new HashMap<SongController, SongDialog>();
+
+	public SongTablePanel(){
+		super(new BorderLayout());
+		model = new SongTableModel();
+		table = new JTable(model);
+		sorter = new TableRowSorter<SongTableModel>(model);
+		//Only the changed row is moved or filtered, the rest stay as they are
+		sorter.setSortsOnUpdates(true);
+		stateFilter = new RowFilter<SongTableModel, Integer>() {
+			@Override
+			public boolean include(Entry<? extends SongTableModel, ? extends Integer> entry) {
+				return shows(model.getState(entry.getIdentifier()));
+			}
+		};
+		table.setRowSorter(sorter);
+		table.setFillsViewportHeight(true);
+		table.getColumnModel().getColumn(SongTableModel.ID).setPreferredWidth(40);
+		table.getColumnModel().getColumn(SongTableModel.SONG).setPreferredWidth(300);
+		table.getColumnModel().getColumn(SongTableModel.STATE).setPreferredWidth(90);
+		table.getColumnModel().getColumn(SongTableModel.PROGRESS).setPreferredWidth(220);
+		table.getColumnModel().getColumn(SongTableModel.PROGRESS).setCellRenderer(new ProgressRenderer());
+		table.getColumnModel().getColumn(SongTableModel.STATUS).setPreferredWidth(350);
+		table.getColumnModel().getColumn(SongTableModel.CONVERSION).setPreferredWidth(90);
+		table.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if ((e.getClickCount()==2)&&(table.rowAtPoint(e.getPoint())!=-1))
+					edit();
+			}
+		});
+		table.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
+			@Override
+			public void valueChanged(ListSelectionEvent e) {
+				updateButtons();
+			}
+		});
+		model.addTableModelListener(new TableModelListener() {
+			@Override
+			public void tableChanged(TableModelEvent e) {
+				songsChanged(e);
+			}
+		});
+
+		showBox = new JComboBox<String>(SHOW);
+		showBox.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				//Without a filter or sort the table shows the model as is, with no work per update
+				sorter.setRowFilter((showBox.getSelectedIndex()==0) ? null : stateFilter);
+			}
+		});
+		editButton = new JButton("Edit Song");
+		editButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				edit();
+			}
+		});
+		openSongButton = new JButton("Open Song");
+		openSongButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				SongController cont = getSelected();
+				if (cont!=null)
+					cont.openSong();
+			}
+		});
+		openVideoButton = new JButton("Open Video");
+		openVideoButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				SongController cont = getSelected();
+				if (cont!=null)
+					cont.openVideo();
+			}
+		});
+		youtubeButton = new JButton("YouTube");
+		youtubeButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				SongController cont = getSelected();
+				if (cont!=null)
+					cont.youtube();
+			}
+		});
+		cancelButton = new JButton("Cancel");
+		cancelButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				cancelSelected();
+			}
+		});
+		JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		buttonPanel.add(new JLabel("Show"));
+		buttonPanel.add(showBox);
+		buttonPanel.add(editButton);
+		buttonPanel.add(openSongButton);
+		buttonPanel.add(openVideoButton);
+		buttonPanel.add(youtubeButton);
+		buttonPanel.add(cancelButton);
+		updateButtons();
+
+		this.add(buttonPanel, BorderLayout.NORTH);
+		this.add(new JScrollPane(table), BorderLayout.CENTER);
+	}
+
+	/**
+	 * Draws a song's progress as a bar. Like every table renderer one bar is reused to draw
+	 * all the rows on screen.
+	 */
+	private class ProgressRenderer extends JProgressBar implements TableCellRenderer{
+
+		private static final long serialVersionUID = 1L;
+
+		ProgressRenderer(){
+			super(0, 100);
+			setStringPainted(true);
+			setBorderPainted(false);
+		}
+
+		@Override
+		public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+				boolean hasFocus, int row, int column) {
+			int percent = (Integer)value;
+			setValue(Math.max(0, percent));
+			setString(SongTablePanel.this.model.getProgressText(table.convertRowIndexToModel(row)));
+			return this;
+		}
+	}
+
+	/**
+	 * Adds a song to the table. Can be called from any thread.
+	 * @param cont
+	 */
+	public void add(SongController cont){
+		model.add(cont);
+	}
+
+	/**
+	 * @return Every song in the table. Only call on the event thread.
+	 */
+	public List<SongController> getControllers(){
+		return model.getControllers();
+	}
+
+	public void clear(){
+		for(SongDialog dialog:dialogs.values()){
+			dialog.dispose();
+		}
+		dialogs.clear();
+		model.clear();
+	}
+
+	private boolean shows(JobState state){
+		switch(showBox.getSelectedIndex()){
+		case 1:
+			return state==JobState.QUEUED;
+		case 2:
+			return (state!=JobState.QUEUED)&&(!state.isFinal());
+		case 3:
+			return state==JobState.DONE;
+		case 4:
+			return state==JobState.FAILED;
+		case 5:
+			return state==JobState.CANCELLED;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the first selected song
+	 * @return null if none is selected
+	 */
+	private SongController getSelected(){
+		int row = table.getSelectedRow();
+		if (row==-1)
+			return null;
+		return model.getController(table.convertRowIndexToModel(row));
+	}
+
+	public void edit(){
+		SongController cont = getSelected();
+		if (cont==null)
+			return;
+		SongDialog dialog = dialogs.get(cont);
+		if (dialog==null){
+			if (cont.getSong()==null){
+				cont.setSong(new Song("New Song","New Artist", "New Album", "New Year", "New Comment", "New Genre"));
+			}
+			dialog = new SongDialog(cont.getSong());
+			dialogs.put(cont, dialog);
+		}
+		dialog.setVisible(true);
+	}
+
+	/**
+	 * Cancels the selected songs that haven't finished
+	 */
+	private void cancelSelected(){
+		for(int row:table.getSelectedRows()){
+			SongController cont = model.getController(table.convertRowIndexToModel(row));
+			if (!cont.isCancelled() && !cont.getState().isFinal())
+				cont.cancel();
+		}
+	}
+
+	/**
+	 * Keeps open song dialogs and the buttons up to date with the songs
+	 * @param e
+	 */
+	private void songsChanged(TableModelEvent e){
+		if ((e.getType()==TableModelEvent.UPDATE)&&(e.getFirstRow()!=TableModelEvent.HEADER_ROW)&&(!dialogs.isEmpty())){
+			for(int row=e.getFirstRow();(row<=e.getLastRow())&&(row<model.getRowCount());row++){
+				SongController cont = model.getController(row);
+				SongDialog dialog = dialogs.get(cont);
+				if ((dialog!=null)&&(cont.getSong()!=null))
+					dialog.updateFields(cont.getSong());
+			}
+		}
+		if ((e.getLastRow()==Integer.MAX_VALUE)&&(!dialogs.isEmpty()))
+			dropDialogs();
+		updateButtons();
+	}
+
+	/**
+	 * Lets go of closed dialogs for songs the table has dropped
+	 */
+	private void dropDialogs(){
+		Iterator<Map.Entry<SongController, SongDialog>> it = dialogs.entrySet().iterator();
+		while (it.hasNext()){
+			Map.Entry<SongController, SongDialog> entry = it.next();
+			if ((!entry.getValue().isVisible())&&(!model.contains(entry.getKey()))){
+				entry.getValue().dispose();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Matches the buttons to the first selected song. Runs on every update, so it doesn't look at
+	 * the rest of the selection.
+	 */
+	private void updateButtons(){
+		SongController cont = getSelected();
+		editButton.setEnabled((cont!=null)&&(!cont.isCancelled()));
+		openSongButton.setEnabled((cont!=null)&&(cont.getState()==JobState.DONE));
+		openVideoButton.setEnabled((cont!=null)&&(cont.hasVideo()));
+		youtubeButton.setEnabled((cont!=null)&&(cont.getSong()!=null));
+		cancelButton.setEnabled(cont!=null);
+	}
+}
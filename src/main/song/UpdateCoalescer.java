@@ -0,0 +1,68 @@
+package main.song;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.swing.Timer;
+
+import main.Config;
+
+/**
+ * Batches screen updates from worker threads. A busy ffmpeg prints many lines a second and
+ * hundreds of songs can be running, so instead of one trip to the event thread per line
+ * workers just mark the song's view as changed. A Swing timer redraws the changed views a
+ * few times a second, each once, from the song's latest state.
+ *
+ * Settings in config.txt: ui_refresh_hz
+ */
+public class UpdateCoalescer {
+
+	private static UpdateCoalescer thiz;
+
+	private Set<IRefreshable> changed = ConcurrentHashMap.<IRefreshable>newKeySet();
+	private Timer timer;
+
+	public static synchronized UpdateCoalescer get(){
+		if (thiz==null)
+			thiz = new UpdateCoalescer(Config.getInt("ui_refresh_hz", 15));
+		return thiz;
+	}
+
+	/**
+	 * @param hz How many times a second to redraw
+	 */
+	public UpdateCoalescer(int hz){
+		timer = new Timer(1000/Math.max(1, Math.min(hz, 100)), new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refreshChanged();
+			}
+		});
+		timer.start();
+	}
+
+	/**
+	 * Marks a view to be redrawn on the next tick. Can be called from any thread and never blocks.
+	 * @param view
+	 */
+	public void changed(IRefreshable view){
+		changed.add(view);
+	}
+
+	private void refreshChanged(){
+		Iterator<IRefreshable> it = changed.iterator();
+		while (it.hasNext()){
+			IRefreshable view = it.next();
+			//Removed first, so a change made while redrawing gets its own redraw next tick
+			it.remove();
+			try{
+				view.refresh();
+			}catch(RuntimeException e){
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package main.web;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with full jitter: before retry n, sleep a random time up to
+ * base*2^n, capped at max. The randomness keeps parallel resolvers from retrying in lockstep.
+ */
+public class Backoff {
+
+	private static final Random random = new Random();
+	private long baseMillis;
+	private long maxMillis;
+	
+	public Backoff(long baseMillis, long maxMillis){
+		this.baseMillis = baseMillis;
+		this.maxMillis = maxMillis;
+	}
+	
+	/**
+	 * @param attempt 0 for the first retry
+	 * @return How long to wait
+	 */
+	public long delay(int attempt){
+		long cap = Math.min(maxMillis, baseMillis<<Math.min(attempt, 20));
+		synchronized (random) {
+			return (long)(random.nextDouble()*cap);
+		}
+	}
+	
+	/**
+	 * Sleeps before a retry
+	 * @param attempt 0 for the first retry
+	 * @return false if interrupted
+	 */
+	public boolean sleep(int attempt){
+		try {
+			Thread.sleep(delay(attempt));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package main.web;
+
+import main.Config;
+
+/**
+ * Watches the outcome of the last requests to youtube. When too many of them failed the breaker
+ * opens and awaitClosed() blocks resolvers for a cool down, instead of every resolver hammering
+ * a server that is throttling us. After the cool down requests are let through again, and if
+ * the first of them fails it reopens. Requests get a ticket from begin() when they start, so
+ * the outcome of one that started before the breaker last opened is ignored.
+ *
+ * Settings in config.txt: breaker_window, breaker_error_percent, breaker_cooldown_seconds
+ */
+public class CircuitBreaker {
+
+	private static CircuitBreaker thiz;
+	
+	private boolean []outcomes;
+	private int next = 0;
+	private int count = 0;
+	private int failures = 0;
+	private int errorPercent;
+	private long cooldownMillis;
+	private long openUntil = 0;
+	private boolean halfOpen = false;
+	/** Opened and no request let through since */
+	private boolean tripped = false;
+	/** How many times it opened */
+	private int generation = 0;
+	
+	public static synchronized CircuitBreaker get(){
+		if (thiz==null){
+			thiz = new CircuitBreaker(Config.getInt("breaker_window", 20),
+					Config.getInt("breaker_error_percent", 50),
+					Config.getLong("breaker_cooldown_seconds", 30)*1000);
+		}
+		return thiz;
+	}
+	
+	public CircuitBreaker(int window, int errorPercent, long cooldownMillis){
+		this.outcomes = new boolean[Math.max(1, window)];
+		this.errorPercent = errorPercent;
+		this.cooldownMillis = cooldownMillis;
+	}
+	
+	/**
+	 * Called when a request is sent. The first one after a cool down is the trial one.
+	 * @return The ticket to pass to success() or failure()
+	 */
+	public synchronized int begin(){
+		if (tripped && !isOpen()){
+			tripped = false;
+			halfOpen = true;
+		}
+		return generation;
+	}
+	
+	public synchronized void success(int ticket){
+		if (ticket!=generation)
+			return;
+		record(false);
+		halfOpen = false;
+	}
+	
+	public synchronized void failure(int ticket){
+		if (ticket!=generation)
+			return;
+		record(true);
+		if (halfOpen || ((count==outcomes.length)&&(failures*100>=errorPercent*count))){
+			open();
+		}
+	}
+	
+	private void record(boolean failed){
+		if (count==outcomes.length){
+			if (outcomes[next])
+				failures--;
+		}else{
+			count++;
+		}
+		outcomes[next] = failed;
+		if (failed)
+			failures++;
+		next = (next+1)%outcomes.length;
+	}
+	
+	private void open(){
+		openUntil = System.currentTimeMillis()+cooldownMillis;
+		generation++;
+		tripped = true;
+		halfOpen = false;
+		next = 0;
+		count = 0;
+		failures = 0;
+	}
+	
+	public synchronized boolean isOpen(){
+		return System.currentTimeMillis()<openUntil;
+	}
+	
+	/**
+	 * Blocks while the breaker is open
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitClosed() throws InterruptedException{
+		long wait;
+		while ((wait=openUntil-System.currentTimeMillis())>0){
+			wait(wait);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package main.web;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Config;
+
+/**
+ * Keeps downloaded web pages on disk so re-running a batch doesn't fetch the same pages again.
+ * Pages are stored one file per URL. Fresh pages are used as is; once a page is older than
+ * the TTL it is revalidated with its ETag/Last-Modified. When the cache grows past its size
+ * limit the least recently used pages are deleted.
+ *
+ * Settings in config.txt: page_cache_dir, page_cache_ttl_minutes, page_cache_max_mb
+ */
+public class PageCache {
+
+	private static PageCache thiz;
+	
+	private File dir;
+	private long ttlMillis;
+	private long maxBytes;
+	private long totalBytes = 0;
+	/** File name to file size, in least recently used order */
+	private LinkedHashMap<String, Long> index;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong revalidations = new AtomicLong();
+	
+	public static class Entry{
+		public final String url;
+		public final String body;
+		public final String etag;
+		public final String lastModified;
+		public final long fetched;
+		
+		Entry(String url, String body, String etag, String lastModified, long fetched){
+			this.url = url;
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.fetched = fetched;
+		}
+	}
+	
+	public static synchronized PageCache get(){
+		if (thiz==null){
+			thiz = new PageCache(new File(Config.get("page_cache_dir", "cache/pages")),
+					Config.getLong("page_cache_ttl_minutes", 24*60)*60*1000,
+					Config.getLong("page_cache_max_mb", 100)*1024*1024);
+		}
+		return thiz;
+	}
+	
+	public PageCache(File dir, long ttlMillis, long maxBytes){
+		this.dir = dir;
+		this.ttlMillis = ttlMillis;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Builds the LRU index from the files already on disk, oldest access first
+	 */
+	private void loadIndex(){
+		index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		dir.mkdirs();
+		File []files = dir.listFiles();
+		if (files==null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for(File f:files){
+			if (f.getName().endsWith(".page")){
+				index.put(f.getName(), f.length());
+				totalBytes += f.length();
+			}
+		}
+	}
+	
+	/**
+	 * Finds the cached page for a URL, fresh or not. Counts a hit if it is fresh.
+	 * @param url
+	 * @return null if the page isn't cached
+	 */
+	public Entry lookup(String url){
+		String name = fileName(url);
+		File file = new File(dir, name);
+		synchronized (this) {
+			if (index==null)
+				loadIndex();
+			if (index.get(name)==null){
+				misses.incrementAndGet();
+				return null;
+			}
+		}
+		Entry entry = read(file);
+		if (entry==null || !entry.url.equals(url)){
+			misses.incrementAndGet();
+			return null;
+		}
+		if (isFresh(entry)){
+			hits.incrementAndGet();
+			file.setLastModified(System.currentTimeMillis());
+		}else{
+			misses.incrementAndGet();
+		}
+		return entry;
+	}
+	
+	public boolean isFresh(Entry entry){
+		return System.currentTimeMillis()-entry.fetched < ttlMillis;
+	}
+	
+	/**
+	 * Stores a page, evicting the least recently used pages if the cache is too big
+	 * @param url
+	 * @param body
+	 * @param etag May be null
+	 * @param lastModified May be null
+	 * @return The stored entry
+	 */
+	public Entry put(String url, String body, String etag, String lastModified){
+		Entry entry = new Entry(url, body, etag==null?"":etag, lastModified==null?"":lastModified, System.currentTimeMillis());
+		String name = fileName(url);
+		File file = new File(dir, name);
+		File temp = new File(dir, name+"."+Thread.currentThread().getId()+".tmp");
+		try {
+			dir.mkdirs();
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+			try{
+				out.writeUTF(entry.url);
+				out.writeLong(entry.fetched);
+				out.writeUTF(entry.etag);
+				out.writeUTF(entry.lastModified);
+				byte []bytes = body.getBytes("UTF-8");
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}finally{
+				out.close();
+			}
+			file.delete();
+			if (!temp.renameTo(file)){
+				temp.delete();
+				return entry;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+			return entry;
+		}
+		synchronized (this) {
+			if (index==null)
+				loadIndex();
+			Long old = index.put(name, file.length());
+			if (old!=null)
+				totalBytes -= old;
+			totalBytes += file.length();
+			evict();
+		}
+		return entry;
+	}
+	
+	/**
+	 * Called when the server said a stale page hasn't changed, so it is fresh again
+	 * @param entry
+	 * @return
+	 */
+	public Entry revalidated(Entry entry){
+		revalidations.incrementAndGet();
+		return put(entry.url, entry.body, entry.etag, entry.lastModified);
+	}
+	
+	private void evict(){
+		Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+		while ((totalBytes>maxBytes)&&(it.hasNext())){
+			Map.Entry<String, Long> eldest = it.next();
+			new File(dir, eldest.getKey()).delete();
+			totalBytes -= eldest.getValue();
+			it.remove();
+		}
+	}
+	
+	private Entry read(File file){
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			String url = in.readUTF();
+			long fetched = in.readLong();
+			String etag = in.readUTF();
+			String lastModified = in.readUTF();
+			byte []bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new Entry(url, new String(bytes, "UTF-8"), etag, lastModified, fetched);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in!=null){
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	private static String fileName(String url){
+		try {
+			byte []digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for(byte b:digest){
+				name.append(String.format("%02x", b));
+			}
+			return name.append(".page").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public long getHits(){
+		return hits.get();
+	}
+	
+	public long getMisses(){
+		return misses.get();
+	}
+	
+	public long getRevalidations(){
+		return revalidations.get();
+	}
+	
+	public synchronized long getSizeBytes(){
+		return totalBytes;
+	}
+	
+	public String getStats(){
+		return "Page cache: "+getHits()+" hits, "+getMisses()+" misses, "+getRevalidations()+" revalidated, "+(getSizeBytes()/1024)+" KB";
+	}
+}
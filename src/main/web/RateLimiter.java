@@ -0,0 +1,88 @@
+package main.web;
+
+import main.Config;
+
+/**
+ * Token bucket shared by everything that talks to youtube: page requests and youtube-dl starts.
+ * Tokens refill at the current rate up to the burst size. Failures halve the rate and each
+ * success adds a little back, up to the configured rate, so the batch settles near the fastest
+ * rate youtube puts up with.
+ *
+ * Settings in config.txt: requests_per_second, request_burst
+ */
+public class RateLimiter {
+
+	private static RateLimiter thiz;
+	
+	private final double maxRate;
+	private final double minRate;
+	private final double burst;
+	private double rate;
+	private double tokens;
+	private long lastRefill;
+	
+	public static synchronized RateLimiter get(){
+		if (thiz==null){
+			double rate = Double.parseDouble(Config.get("requests_per_second", "5"));
+			double burst = Double.parseDouble(Config.get("request_burst", "10"));
+			thiz = new RateLimiter(rate, burst);
+		}
+		return thiz;
+	}
+	
+	public RateLimiter(double requestsPerSecond, double burst){
+		this.maxRate = requestsPerSecond;
+		this.minRate = Math.min(requestsPerSecond, 0.2);
+		this.burst = Math.max(1, burst);
+		this.rate = requestsPerSecond;
+		this.tokens = this.burst;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	/**
+	 * Blocks until a request may be sent
+	 * @return false if interrupted while waiting
+	 */
+	public boolean acquire(){
+		while (true){
+			long waitNanos;
+			synchronized (this) {
+				refill();
+				if (tokens>=1){
+					tokens -= 1;
+					return true;
+				}
+				waitNanos = (long)((1-tokens)/rate*1000000000L);
+			}
+			try {
+				Thread.sleep(Math.max(1, waitNanos/1000000), (int)(waitNanos%1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+	
+	private void refill(){
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens+(now-lastRefill)*rate/1000000000L);
+		lastRefill = now;
+	}
+	
+	/**
+	 * Youtube refused or throttled a request, so slow down
+	 */
+	public synchronized void failure(){
+		refill();
+		rate = Math.max(minRate, rate/2);
+	}
+	
+	public synchronized void success(){
+		refill();
+		rate = Math.min(maxRate, rate+maxRate/20);
+	}
+	
+	public synchronized double getRate(){
+		return rate;
+	}
+}